@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009-2010 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@Typed package channels
+
+import groovypp.channels.ChannelGroup
+import groovypp.channels.ExecutingChannel
+import groovypp.channels.LightChannel
+import groovypp.concurrent.CallLaterExecutors
+
+/*
+ * Compares heap used by idle LightChannel and ExecutingChannel.
+ * Both subclasses declare the same fields, so the difference comes from the base classes only.
+ * Numbers are approximate, because they are deltas of used heap after System.gc()
+ */
+
+class LightCounter extends LightChannel<Integer> {
+    int sum
+
+    protected void onMessage(Integer message) {
+        sum += message
+    }
+}
+
+class ExecutingCounter extends ExecutingChannel<Integer> {
+    int sum
+
+    protected void onMessage(Integer message) {
+        sum += message
+    }
+}
+
+long usedMemory () {
+    def runtime = Runtime.runtime
+    for (i in 0..<4) {
+        System.gc()
+        Thread.sleep 50
+    }
+    runtime.totalMemory() - runtime.freeMemory()
+}
+
+def n = 200000
+def pool = CallLaterExecutors.newFixedThreadPool(1)
+ChannelGroup group = [pool]
+
+def base = usedMemory()
+Object[] light = new Object[n]
+for (i in 0..<n)
+    light[i] = new LightCounter(group:group)
+def lightBytes = (usedMemory() - base).intdiv(n)
+
+base = usedMemory()
+Object[] executing = new Object[n]
+for (i in 0..<n)
+    executing[i] = new ExecutingCounter(executor:pool)
+def executingBytes = (usedMemory() - base).intdiv(n)
+
+// keep both populations reachable until measured
+assert light.length == executing.length
+println "Idle channel footprint: LightChannel ~${lightBytes} bytes, ExecutingChannel ~${executingBytes} bytes"
+pool.shutdown()
@@ -19,25 +19,174 @@ package groovypp.channels
 import java.util.concurrent.ConcurrentHashMap
 
 /**
- * 
+ * Selector, which maps each message to a key and lazily creates and caches single recipient per key
+ *
+ * Route for a key is created at most once while it stays in the cache, even if many threads miss at the same time:
+ * losing threads wait for the route created by the winner. Hits do not lock and do not allocate.
+ *
+ * Cache holds at most {@link #maxCacheSize} routes. Eviction uses CLOCK (second chance) approximation of LRU:
+ * hit marks route as referenced, and thread inserting over the limit sweeps the cache, clearing marks, until it finds
+ * unreferenced route to evict.
  */
-abstract class CachingSelectorChannel<M,K> extends SelectorChannel<M> {
+@Typed abstract class CachingSelectorChannel<M,K> extends SelectorChannel<M> {
 
-    private ConcurrentHashMap<K, MessageChannel<M>> cache = []
+    /**
+     * Maximal number of cached routes, at least 1
+     */
+    int maxCacheSize = 10000
 
-    Iterator<MessageChannel<M>> selectInterested(M message) {
-        def key = messageKey(message)
-        def c = cache.get(key)
-        if (!c) {
-          synchronized(cache) {
+    private final ConcurrentHashMap<K, Route<M,K>> cache = []
 
-          }
-        }
-        c.singletonList().iterator()
+    private volatile int size
+
+    private volatile int sweeping
+
+    private Iterator<Route<M,K>> hand
+
+    final void post(M message) {
+        def c = route(messageKey(message))
+        if (c)
+            c.post(message)
+    }
+
+    Iterator<MessageChannel<M>> selectInterested(M message) {
+        def c = route(messageKey(message))
+        c ? Collections.singleton(c).iterator() : Collections.<MessageChannel<M>>emptyList().iterator()
     }
 
     /**
     * Maps message to key in the cache
     */
     abstract protected K messageKey(M message)
+
+    /**
+     * Creates recipient for messages with given key. Called at most once per key while the route is cached
+     *
+     * @return recipient or null if messages with the key should be ignored. Null is not cached
+     */
+    abstract protected MessageChannel<M> createRoute(K key)
+
+    /**
+     * Removes cached route, so next message with the key creates it again
+     */
+    void invalidate(K key) {
+        if (cache.remove(key))
+            resized(-1)
+    }
+
+    void invalidateAll() {
+        for (key in cache.keySet())
+            invalidate(key)
+    }
+
+    void setMaxCacheSize(int maxCacheSize) {
+        if (maxCacheSize <= 0)
+            throw new IllegalArgumentException("Cache size should be positive")
+        this.maxCacheSize = maxCacheSize
+    }
+
+    /**
+     * @return number of cached routes
+     */
+    int getCacheSize() {
+        size
+    }
+
+    private MessageChannel<M> route(K key) {
+        def r = cache.get(key)
+        if (r == null) {
+            Route<M,K> created = [this, key]
+            r = cache.putIfAbsent(key, created)
+            if (r == null) {
+                r = created
+                if (resized(1) > maxCacheSize)
+                    evict(created)
+            }
+        }
+        else if (!r.referenced) {
+            r.referenced = true
+        }
+
+        def c = r.channel
+        if (c == null) {
+            c = r.create()
+            if (c == null && cache.remove(key, r))
+                resized(-1)
+        }
+        c
+    }
+
+    private int resized(int delta) {
+        for (;;) {
+            def s = size
+            if (size.compareAndSet(s, s + delta))
+                return s + delta
+        }
+    }
+
+    /**
+     * Sweeps cache with CLOCK hand until it fits maxCacheSize
+     *
+     * @param inserted route, which caused eviction. It is never evicted by this sweep
+     */
+    private void evict(Route<M,K> inserted) {
+        if (!sweeping.compareAndSet(0, 1))
+            return  // other thread is sweeping already
+
+        try {
+            // the first pass may only clear marks, so two passes removing nothing mean there is nothing to evict
+            def idlePasses = 0
+            while (size > maxCacheSize) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = cache.values().iterator()
+                    if (!hand.hasNext() || ++idlePasses > 2)
+                        return
+                }
+
+                def r = hand.next()
+                if (r === inserted)
+                    continue
+
+                if (r.referenced) {
+                    r.referenced = false
+                }
+                else {
+                    if (cache.remove(r.key, r)) {
+                        resized(-1)
+                        idlePasses = 0
+                    }
+                }
+            }
+        }
+        finally {
+            sweeping = 0
+        }
+    }
+
+    private static final class Route<M,K> {
+        final CachingSelectorChannel<M,K> owner
+
+        final K key
+
+        volatile MessageChannel<M> channel
+
+        /**
+         * New route starts referenced, so it survives at least one pass of the hand
+         */
+        volatile boolean referenced = true
+
+        Route(CachingSelectorChannel<M,K> owner, K key) {
+            this.owner = owner
+            this.key = key
+        }
+
+        synchronized MessageChannel<M> create() {
+            def c = channel
+            if (c == null) {
+                c = owner.createRoute(key)
+                channel = c
+            }
+            c
+        }
+    }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.util.concurrent.Executor
+
+/**
+ * Configuration shared by many {@link LightChannel}s, so each of them needs to keep only one reference to it
+ */
+@Typed class ChannelGroup {
+    final Executor executor
+
+    /**
+     * Maximal number of messages processed by channel before it gives the thread to other channels
+     */
+    final int throughput
+
+    ChannelGroup (Executor executor, int throughput = 64) {
+        if (throughput <= 0)
+            throw new IllegalArgumentException("Throughput should be positive")
+        this.executor = executor
+        this.throughput = throughput
+    }
+
+    /**
+     * Called when channel without owner failed to process message
+     */
+    protected void onCrash (LightChannel channel, Throwable cause) {
+        cause.printStackTrace()
+    }
+}
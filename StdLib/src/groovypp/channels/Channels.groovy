@@ -29,12 +29,32 @@ import java.util.concurrent.Executor
     /**
     * Utility method to create a channel from closure.
     */
-    static <T> MessageChannel<T> executingChannel(Executor self, boolean runFair = false, InlineExecutingChannel<T> channel) {
+    static <T> MessageChannel<T> executingChannel(Executor self, boolean runFair = false, boolean linkedMailbox = false, InlineExecutingChannel<T> channel) {
         channel.executor = self
         channel.runFair = runFair
+        channel.linkedMailbox = linkedMailbox
         channel
     }
 
+    /**
+    * Utility method to create a channel receiving messages in batches of up to maxBatchSize messages.
+    * Channel waking up with incomplete batch waits up to maxLingerMillis for more messages.
+    */
+    static <T> MessageChannel<T> executingChannel(Executor self, int maxBatchSize, long maxLingerMillis = 0L, InlineBatchingChannel<T> channel) {
+        channel.executor = self
+        channel.maxBatchSize = maxBatchSize
+        channel.maxLingerMillis = maxLingerMillis
+        channel
+    }
+
+    abstract static class InlineBatchingChannel<T> extends ExecutingChannel<T> {
+        protected void onBatch(List<T> messages) {
+            doOnBatch(messages)
+        }
+
+        abstract protected void doOnBatch(List<T> messages)
+    }
+
     abstract static class InlineExecutingChannel<T> extends ExecutingChannel<T> {
         protected void onMessage(T message) {
             if(message instanceof ExecutingChannel.ExecuteCommand) {
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.BindLater
+import groovypp.concurrent.FList
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Channel receiving replies to requests made by {@link MessageChannel#request(MessageChannel, MessageChannel.ReplyRequiringMessage, long)}
+ *
+ * Each request gets correlation id and is completed when {@link Reply} with the same id arrives,
+ * so all requests share this channel instead of creating reply channel per call.
+ *
+ * Timeouts are tracked by timing wheel with {@link #TICK_MILLIS} resolution driven by one task of shared channels timer.
+ * The task is stopped when no request is waiting for reply.
+ */
+@Typed final class CorrelationTable extends MessageChannel<Object> {
+    static final long TICK_MILLIS = 10L
+
+    private static final int WHEEL_SIZE = 512
+
+    /**
+     * Table used by MessageChannel.request
+     */
+    static final CorrelationTable instance = []
+
+    private final ConcurrentHashMap<Long, Pending> pending = []
+
+    private volatile long lastId
+
+    private final AtomicReferenceArray<FList<Pending>> wheel = [WHEEL_SIZE]
+
+    /**
+     * Last tick, which timeouts were processed for
+     */
+    private volatile long processedTick = -1L
+
+    /**
+     * Tick, which timeouts are being processed for. Set before its slot is taken, so request added to the slot
+     * after that sees it is due
+     */
+    private volatile long processingTick = -1L
+
+    private volatile TimerTask ticker
+
+    CorrelationTable() {
+        for (i in 0..<WHEEL_SIZE)
+            wheel.set(i, FList.emptyList)
+    }
+
+    /**
+     * Posts message and returns future bound with reply
+     *
+     * @param timeoutMillis if positive, future fails with TimeoutException when reply does not arrive in time
+     */
+    <M extends MessageChannel.ReplyRequiringMessage, R> BindLater<R> request(MessageChannel<M> channel, M message, long timeoutMillis) {
+        def id = lastId.incrementAndGet()
+        def deadline = timeoutMillis > 0 ? toTick(System.currentTimeMillis() + timeoutMillis + TICK_MILLIS - 1) : 0L
+        Pending res = [this, id, deadline]
+        pending.put(id, res)
+
+        message.replyTo = this
+        message.correlationId = id
+        try {
+            channel.post(message)
+        }
+        catch (Throwable t) {
+            res.setException(t)
+            return (BindLater<R>)res
+        }
+
+        if (deadline)
+            schedule(res)
+        (BindLater<R>)res
+    }
+
+    /**
+     * @return number of requests waiting for reply
+     */
+    int getPendingCount() {
+        pending.size()
+    }
+
+    void post(Object message) {
+        if (message instanceof Reply) {
+            def reply = (Reply)message
+            def p = pending.remove(reply.correlationId)
+            if (p) {
+                if (reply.failed)
+                    p.setException((Throwable)reply.value)
+                else
+                    p.set(reply.value)
+            }
+        }
+    }
+
+    private void schedule(Pending p) {
+        startTicker()
+
+        def tick = processedTick
+        def slot = (int)((p.deadline > tick ? p.deadline : tick + 1) & (WHEEL_SIZE - 1))
+        for (;;) {
+            def l = wheel.get(slot)
+            if (wheel.compareAndSet(slot, l, l + p))
+                break
+        }
+
+        // the slot could be taken while we added to it
+        if (p.deadline <= processingTick)
+            expire(p)
+    }
+
+    private void startTicker() {
+        if (ticker)
+            return
+
+        TimerTask task = { onTick() }
+        if (ticker.compareAndSet(null, task))
+            ExecutingChannel.globalChannelsTimer.schedule(task, TICK_MILLIS, TICK_MILLIS)
+    }
+
+    private void onTick() {
+        def now = toTick(System.currentTimeMillis())
+        def from = processedTick < 0 ? now : processedTick + 1
+        // after long pause one revolution visits every slot
+        if (now - from >= WHEEL_SIZE)
+            from = now - WHEEL_SIZE + 1
+
+        for (def tick = from; tick <= now; ++tick) {
+            def slot = (int)(tick & (WHEEL_SIZE - 1))
+            processingTick = tick
+            def due = wheel.getAndSet(slot, FList.emptyList)
+            for (p in due) {
+                if (p.done)
+                    continue
+
+                if (p.deadline <= now) {
+                    expire(p)
+                }
+                else {
+                    // deadline is one or more revolutions ahead
+                    for (;;) {
+                        def l = wheel.get(slot)
+                        if (wheel.compareAndSet(slot, l, l + p))
+                            break
+                    }
+                }
+            }
+            processedTick = tick
+        }
+
+        if (pending.empty)
+            stopTicker()
+    }
+
+    private void stopTicker() {
+        def task = ticker
+        if (task && ticker.compareAndSet(task, null)) {
+            task.cancel()
+            // request could be added after the check
+            if (!pending.empty)
+                startTicker()
+        }
+    }
+
+    private static long toTick(long millis) {
+        (long)(millis / TICK_MILLIS)
+    }
+
+    private void expire(Pending p) {
+        if (pending.remove(p.id, p))
+            p.setException(new TimeoutException("No reply in time for request ${p.id}"))
+    }
+
+    /**
+     * Reply to request made through correlation table
+     */
+    static final class Reply implements Serializable {
+        final long correlationId
+
+        final Object value
+
+        final boolean failed
+
+        Reply(long correlationId, Object value, boolean failed) {
+            this.correlationId = correlationId
+            this.value = value
+            this.failed = failed
+        }
+    }
+
+    private static final class Pending extends BindLater<Object> {
+        final CorrelationTable table
+
+        final long id
+
+        /**
+         * Tick, after which request times out, or 0
+         */
+        final long deadline
+
+        Pending(CorrelationTable table, long id, long deadline) {
+            this.table = table
+            this.id = id
+            this.deadline = deadline
+        }
+
+        protected void done() {
+            // cancelled or failed request should not wait for reply
+            table.pending.remove(id, this)
+            super.done()
+        }
+    }
+}
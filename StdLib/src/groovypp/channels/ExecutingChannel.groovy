@@ -18,17 +18,26 @@ package groovypp.channels
 
 import java.util.concurrent.Executor
 
+import groovypp.concurrent.BindLater
+import groovypp.concurrent.FList
 import groovypp.concurrent.FQueue
 import groovypp.concurrent.CallLater
+import groovypp.concurrent.CallLaterExecutors
+import groovypp.concurrent.MpscQueue
+import groovypp.concurrent.ExecutionMetrics
+import groovypp.concurrent.Tracer
 
 /**
  * Channel, which asynchronously schedule incoming messages for processing.
  * No more than one message processed at any given moment
  */
 @Typed abstract class ExecutingChannel<M> extends MessageChannel<M> implements Runnable {
-    private final static Timer globalChannelsTimer = []
+    protected final static Timer globalChannelsTimer = CallLaterExecutors.globalTimer
 
-    protected volatile FQueue<M> queue = FQueue.emptyQueue
+    /**
+     * Elements are messages or, if metrics are set, {@link ExecutionMetrics.Stamped} wrapping them
+     */
+    protected volatile FQueue<Object> queue = FQueue.emptyQueue
 
     /**
      * non volatile. should be effectively final
@@ -40,38 +49,524 @@ import groovypp.concurrent.CallLater
      */
     boolean  runFair
 
+    /**
+     * non volatile. should be effectively final
+     * If set, time in queue and processing time of each message are recorded
+     */
+    ExecutionMetrics metrics
+
+    /**
+     * non volatile. should be effectively final
+     * If positive, messages are delivered to {@link #onBatch} in lists of up to maxBatchSize messages
+     * instead of one by one to onMessage
+     */
+    int maxBatchSize
+
+    /**
+     * non volatile. should be effectively final
+     * If positive and batching is on, channel waking up with less than maxBatchSize pending messages waits up to
+     * maxLingerMillis for the batch to fill. With queue (but not with linked mailbox) lingering ends as soon
+     * as the batch is full.
+     */
+    long maxLingerMillis
+
+    private static final int LINGERING = 1
+    private static final int LINGER_EXPIRED = 2
+    private static final int LINGER_STATE_MASK = 3
+    private static final int LINGER_GENERATION = 4
+
+    /**
+     * Linger state in low bits and number of the linger in the rest, so flush of previous linger never ends current one
+     */
+    private volatile int lingering
+
+    /**
+     * Timer task ending current linger. Cancelled when linger ends earlier
+     */
+    private volatile TimerTask lingerTask
+
+    /**
+     * True if processing thread rescheduled the channel itself. Accessed by processing thread only
+     */
+    private boolean continuing
+
+    private static final Object NONE = new Object()
+
+    /**
+     * State of bounded mailbox or null. Non volatile, should be effectively final
+     */
+    private MailboxGuard guard
+
     /**
      * Special tag saying that processing thread(reader) is processing last message in the queue.
      * This is kind of protocol between writers to QueuedChannel and reader.
      */
     protected static final FQueue busyEmptyQueue = FQueue.emptyQueue + null
 
+    /**
+     * Linked mailbox or null if messages are kept in queue. Non volatile, should be effectively final
+     */
+    private MpscQueue<Object> mailbox
+
+    /**
+     * Guards polling of linked mailbox when its limit drops oldest messages, because then producers poll it too
+     */
+    private final Object pollLock = new Object()
+
+    /**
+     * Commands polled from linked mailbox by producer dropping oldest message. Modified under pollLock only
+     */
+    private volatile FQueue<Object> requeued = FQueue.emptyQueue
+
+    /**
+     * Messages posted first to linked mailbox, the most recent first
+     */
+    private volatile FList<Object> urgent = FList.emptyList
+
+    /**
+     * If true, messages are kept in linked multi-producer/single-consumer queue instead of persistent FQueue.
+     * Posting allocates one node and never retries, so it suits channels with many concurrent producers.
+     * In this mode queue only holds scheduling state: busyEmptyQueue while channel is scheduled or running
+     * and emptyQueue while it is idle.
+     *
+     * Should be set before first message posted
+     */
+    void setLinkedMailbox (boolean linked) {
+        mailbox = linked ? new MpscQueue<Object>() : null
+    }
+
+    boolean isLinkedMailbox () {
+        mailbox != null
+    }
+
+    /**
+     * Posts message applying overflow policy of the limit if mailbox is full
+     */
     final void post(M message) {
+        enqueue(message, false)
+    }
+
+    /**
+     * Posts message if mailbox is not full
+     *
+     * @return false if mailbox is full. Overflow policy is not applied
+     */
+    final boolean offer(M message) {
+        enqueue(message, true)
+    }
+
+    /**
+     * If set, mailbox is bounded and overflow policy of the limit applies to posted messages.
+     * Should be set before first message posted
+     */
+    void setLimit (MailboxLimit limit) {
+        guard = limit ? new MailboxGuard(limit) : null
+    }
+
+    MailboxLimit getLimit () {
+        guard?.limit
+    }
+
+    /**
+     * @return true if channel has limit and mailbox reached its capacity
+     */
+    final boolean isFull() {
+        def g = guard
+        g && g.full
+    }
+
+    /**
+     * @return future bound with this channel as soon as mailbox is not full
+     */
+    final BindLater<ExecutingChannel<M>> whenAvailable() {
+        def g = guard
+        if (!g) {
+            BindLater<ExecutingChannel<M>> res = []
+            res.set(this)
+            return res
+        }
+        g.whenAvailable(this)
+    }
+
+    /**
+     * Called with message dropped because of overflow policy
+     */
+    protected void onDropped(M message) {
+    }
+
+    private boolean enqueue(M message, boolean offer) {
+        def recorder = metrics
+        Object element = recorder ? recorder.stamp(message) : message
+
+        def g = message instanceof ExecuteCommand ? null : guard
+        def acquired = g ? g.acquire(element, offer) : MailboxGuard.ACQUIRED
+        if (acquired == MailboxGuard.REFUSED)
+            return false
+        if (acquired == MailboxGuard.DROPPED) {
+            dropped(element)
+            return false
+        }
+
+        def linked = mailbox
+        if (linked) {
+            if (acquired == MailboxGuard.REPLACE) {
+                // the place of dropped message goes to the new one, so size of the guard does not change
+                def oldest = pollOldest()
+                if (oldest === NONE) {
+                    dropped(element)
+                    return false
+                }
+                dropped(oldest)
+            }
+
+            linked.add(element)
+            scheduleLinked()
+            return true
+        }
+
+        Tracer.CasRetries retries = null
         for (;;) {
             def oldQueue = queue
-            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addLast(message)
+            def base = oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue
+
+            FQueue<Object> newQueue
+            def oldest = NONE
+            if (acquired == MailboxGuard.REPLACE) {
+                def removed = MailboxGuard.removeOldest(base)
+                if (!removed) {
+                    dropped(element)
+                    return false
+                }
+                oldest = removed.first
+                newQueue = removed.second.addLast(element)
+            }
+            else {
+                newQueue = base.addLast(element)
+            }
+
             if (queue.compareAndSet(oldQueue, newQueue)) {
                 if(oldQueue.empty)
                     executor.execute(this)
-                return
+                else {
+                    def linger = lingering
+                    if ((linger & LINGER_STATE_MASK) == LINGERING && newQueue.size() >= maxBatchSize)
+                        flushLinger(linger)
+                }
+                if (oldest !== NONE)
+                    dropped(oldest)
+                retries?.report(this)
+                return true
             }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
+    /**
+     * Producer side removal of the oldest limited message from full linked mailbox.
+     * Commands met on the way are moved to requeued, so they keep their order.
+     *
+     * @return NONE if no limited message is reachable yet
+     */
+    private Object pollOldest() {
+        synchronized (pollLock) {
+            def linked = mailbox
+            for (;;) {
+                def node = linked.poll()
+                if (!node)
+                    return NONE
+
+                def message = node.value
+                node.value = null
+                if (!MailboxGuard.isLimited(message)) {
+                    requeued = requeued.addLast(message)
+                    continue
+                }
+                return message
+            }
+        }
+    }
+
+    private void dropped(Object element) {
+        onDropped((M)MailboxGuard.unwrapRejected(element))
+    }
+
+    /**
+     * Posts message to the head of mailbox. Limit does not apply, but the message takes place in the mailbox
+     */
     final void postFirst(M message) {
+        def recorder = metrics
+        Object element = recorder ? recorder.stamp(message) : message
+        guard?.added(element)
+
+        if (mailbox) {
+            for (;;) {
+                def u = urgent
+                if (urgent.compareAndSet(u, u + element))
+                    break
+            }
+            scheduleLinked()
+            return
+        }
+
+        Tracer.CasRetries retries = null
         for (;;) {
             def oldQueue = queue
-            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addFirst(message)
+            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addFirst(element)
             if (queue.compareAndSet(oldQueue, newQueue)) {
                 if(oldQueue.empty)
                     executor.execute(this)
+                retries?.report(this)
                 return
             }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     final void run() {
-        runFair ? runFair () : runNonfair ()
+        if (!canTake())
+            return
+
+        if (maxBatchSize > 0 && maxLingerMillis > 0 && linger())
+            return
+
+        if (mailbox)
+            runLinked ()
+        else if (maxBatchSize > 0)
+            runBatch ()
+        else
+            runFair ? runFair () : runNonfair ()
+    }
+
+    private void scheduleLinked () {
+        if (queue === FQueue.emptyQueue && queue.compareAndSet(FQueue.emptyQueue, busyEmptyQueue))
+            executor.execute(this)
+    }
+
+    /**
+     * Takes next message from linked mailbox
+     *
+     * @return NONE if mailbox is empty
+     */
+    private Object takeLinked () {
+        def linked = mailbox
+        for (;;) {
+            def u = urgent
+            if (!u.empty) {
+                if (urgent.compareAndSet(u, u.tail)) {
+                    guard?.taken(u.head)
+                    return u.head
+                }
+                continue
+            }
+
+            if (isDropOldestLinked()) {
+                def message = pollLinkedLocked()
+                if (message !== NONE) {
+                    guard?.taken(message)
+                    return message
+                }
+            }
+            else {
+                def node = linked.poll()
+                if (node) {
+                    def message = node.value
+                    node.value = null
+                    guard?.taken(message)
+                    return message
+                }
+            }
+
+            if (linked.empty && requeued.empty)
+                return NONE
+
+            // producer swapped the tail but did not link its node yet
+            Thread.yield()
+        }
+    }
+
+    /**
+     * Consumer side poll of linked mailbox, which producers may drop messages from
+     */
+    private Object pollLinkedLocked () {
+        synchronized (pollLock) {
+            def r = requeued
+            if (!r.empty) {
+                def removed = r.removeFirst()
+                requeued = removed.second
+                return removed.first
+            }
+
+            def node = mailbox.poll()
+            if (!node)
+                return NONE
+
+            def message = node.value
+            node.value = null
+            message
+        }
+    }
+
+    private boolean isDropOldestLinked () {
+        guard && guard.limit.policy == MailboxLimit.Policy.DROP_OLDEST
+    }
+
+    private void runLinked () {
+        def linked = mailbox
+        for (;;) {
+            def message = takeLinked()
+            if (message !== NONE) {
+                if (maxBatchSize > 0) {
+                    List<Object> batch = [message]
+                    while (batch.size() < maxBatchSize) {
+                        def next = takeLinked()
+                        if (next === NONE)
+                            break
+                        batch << next
+                    }
+                    deliverBatch batch
+                }
+                else {
+                    deliver(message)
+                    if (!runFair)
+                        continue
+                }
+
+                if (!linked.empty || !urgent.empty || !requeued.empty) {
+                    continuing = true
+                    executor.execute this
+                    return
+                }
+            }
+
+            // nothing to process: become idle and check that nobody posted in between
+            queue = FQueue.emptyQueue
+            if ((linked.empty && urgent.empty && requeued.empty) || !queue.compareAndSet(FQueue.emptyQueue, busyEmptyQueue))
+                return
+        }
+    }
+
+    /**
+     * Takes up to maxBatchSize messages from queue per execution
+     */
+    private void runBatch () {
+        for (;;) {
+            def q = queue
+            List<Object> batch = []
+            def rest = q
+            while (batch.size() < maxBatchSize && !rest.empty) {
+                def removed = rest.removeFirst()
+                batch << removed.first
+                rest = removed.second
+            }
+
+            if (queue.compareAndSet(q, rest.empty ? busyEmptyQueue : rest)) {
+                guard?.takenAll(batch)
+                deliverBatch batch
+                if (!rest.empty || !queue.compareAndSet(busyEmptyQueue, FQueue.emptyQueue)) {
+                    continuing = true
+                    executor.execute this
+                }
+                return
+            }
+        }
+    }
+
+    /**
+     * Delivers batch to onBatch unwrapping stamped messages. Commands are executed in order, splitting the batch
+     */
+    private void deliverBatch (List<Object> batch) {
+        List<M> messages = []
+        List<ExecutionMetrics.Stamped> stamps = []
+        for (m in batch) {
+            def message = m instanceof ExecutionMetrics.Stamped ? ((ExecutionMetrics.Stamped)m).task : m
+            if (message instanceof ExecuteCommand) {
+                flushBatch(messages, stamps)
+                deliver m
+            }
+            else {
+                messages << (M)message
+                if (m instanceof ExecutionMetrics.Stamped)
+                    stamps << (ExecutionMetrics.Stamped)m
+            }
+        }
+        flushBatch(messages, stamps)
+    }
+
+    private void flushBatch (List<M> messages, List<ExecutionMetrics.Stamped> stamps) {
+        if (messages.empty)
+            return
+
+        def tracer = Tracer.active(Tracer.MESSAGES)
+        long[] starts = new long[stamps.size()]
+        for (int i = 0; i != starts.length; ++i)
+            starts[i] = stamps[i].metrics.started(stamps[i])
+
+        def span = tracer?.begin(Tracer.MESSAGES)
+        def start = System.nanoTime()
+        def ok = false
+        try {
+            onBatch(new ArrayList<M>(messages))
+            ok = true
+        }
+        finally {
+            for (int i = 0; i != starts.length; ++i) {
+                if (ok)
+                    stamps[i].metrics.completed(starts[i])
+                else
+                    stamps[i].metrics.failed(starts[i])
+            }
+            tracer?.messageProcessed(span, this, messages, System.nanoTime() - start)
+            messages.clear()
+            stamps.clear()
+        }
+    }
+
+    /**
+     * Batch delivery callback used when maxBatchSize is positive.
+     * Default implementation passes messages one by one to onMessage
+     */
+    protected void onBatch (List<M> messages) {
+        for (m in messages)
+            onMessage m
+    }
+
+    /**
+     * Starts lingering if channel woke up with incomplete batch
+     *
+     * @return true if processing is postponed
+     */
+    private boolean linger () {
+        if (continuing) {
+            continuing = false
+            return false
+        }
+
+        def current = lingering
+        if ((current & LINGER_STATE_MASK) == LINGER_EXPIRED) {
+            lingering = current & ~LINGER_STATE_MASK
+            return false
+        }
+
+        def pending = mailbox ? (mailbox.empty ? 0 : 1) : queue.size()
+        if (pending >= maxBatchSize)
+            return false
+
+        def linger = ((current & ~LINGER_STATE_MASK) + LINGER_GENERATION) | LINGERING
+        TimerTask task = { flushLinger(linger) }
+        lingerTask = task
+        lingering = linger
+        globalChannelsTimer.schedule(task, maxLingerMillis)
+        true
+    }
+
+    /**
+     * Ends given linger, if it is still the current one
+     */
+    private void flushLinger (int linger) {
+        if (lingering.compareAndSet(linger, (linger & ~LINGER_STATE_MASK) | LINGER_EXPIRED)) {
+            lingerTask?.cancel()
+            executor.execute this
+        }
     }
 
     private void runFair () {
@@ -80,7 +575,8 @@ import groovypp.concurrent.CallLater
             def removed = q.removeFirst()
             if (q.size() == 1) {
                 if (queue.compareAndSet(q, busyEmptyQueue)) {
-                    onMessage removed.first
+                    guard?.taken(removed.first)
+                    deliver removed.first
                     if (!queue.compareAndSet(busyEmptyQueue, FQueue.emptyQueue)) {
                         executor.execute this
                     }
@@ -89,7 +585,8 @@ import groovypp.concurrent.CallLater
             }
             else {
                 if (queue.compareAndSet(q, removed.second)) {
-                    onMessage removed.first
+                    guard?.taken(removed.first)
+                    deliver removed.first
                     executor.execute this
                     return
                 }
@@ -101,8 +598,9 @@ import groovypp.concurrent.CallLater
         for (;;) {
             def q = queue
             if (queue.compareAndSet(q, busyEmptyQueue)) {
+                guard?.takenAll(q)
                 for(m in q) {
-                    onMessage m
+                    deliver m
                 }
                 if(!queue.compareAndSet(busyEmptyQueue, FQueue.emptyQueue)) {
                     continue
@@ -112,6 +610,59 @@ import groovypp.concurrent.CallLater
         }
     }
 
+    /**
+     * Passes message to onMessage unwrapping and measuring it if the message was stamped by metrics or tracing is on
+     */
+    private void deliver(Object element) {
+        def tracer = Tracer.active(Tracer.MESSAGES)
+        if (!tracer && !(element instanceof ExecutionMetrics.Stamped)) {
+            onMessage((M)element)
+            return
+        }
+
+        ExecutionMetrics.Stamped stamped = null
+        M message
+        if (element instanceof ExecutionMetrics.Stamped) {
+            stamped = (ExecutionMetrics.Stamped)element
+            message = (M)stamped.task
+        }
+        else {
+            message = (M)element
+        }
+
+        def span = tracer?.begin(Tracer.MESSAGES)
+        def start = stamped ? stamped.metrics.started(stamped) : System.nanoTime()
+        def ok = false
+        try {
+            onMessage message
+            ok = true
+        }
+        finally {
+            if (stamped) {
+                if (ok)
+                    stamped.metrics.completed(start)
+                else
+                    stamped.metrics.failed(start)
+            }
+            tracer?.messageProcessed(span, this, message, System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Called by processing thread before it takes messages. If it returns false, channel takes no messages and
+     * stays scheduled, so posting does not wake it up, until {@link #resume} is called
+     */
+    protected boolean canTake() {
+        true
+    }
+
+    /**
+     * Continues processing of channel, which canTake stopped. Should be called exactly once after canTake returned false
+     */
+    protected final void resume() {
+        executor.execute this
+    }
+
     protected void onMessage(M message) {
         if(message instanceof ExecuteCommand) {
             ((ExecuteCommand)message).run ()
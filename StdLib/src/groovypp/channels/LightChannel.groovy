@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.FList
+import groovypp.concurrent.FQueue
+
+/**
+ * Serial channel with minimal footprint for applications with millions of mostly idle channels
+ *
+ * Executor and other configuration are shared through {@link ChannelGroup}. Idle channel references the shared
+ * empty queue, and supervision state is allocated only for channels which have owner or children,
+ * so idle channel costs object header and three references.
+ *
+ * Unlike {@link ExecutingChannel} there are no metrics, batching, linked or bounded mailboxes.
+ * Channel processes up to group throughput messages per execution, then reschedules itself.
+ */
+@Typed abstract class LightChannel<M> extends MessageChannel<M> implements Runnable {
+    /**
+     * non volatile. should be effectively final
+     */
+    ChannelGroup group
+
+    private volatile FQueue<M> queue = FQueue.emptyQueue
+
+    /**
+     * Null until channel gets owner or child
+     */
+    private volatile Supervision supervision
+
+    abstract protected void onMessage (M message)
+
+    final void post (M message) {
+        for (;;) {
+            def oldQueue = queue
+            def newQueue = (oldQueue === ExecutingChannel.busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addLast(message)
+            if (queue.compareAndSet(oldQueue, newQueue)) {
+                if (oldQueue.empty)
+                    group.executor.execute(this)
+                return
+            }
+        }
+    }
+
+    final void run () {
+        def g = group
+        int processed = 0
+        for (;;) {
+            def q = queue
+            if (queue.compareAndSet(q, ExecutingChannel.busyEmptyQueue)) {
+                for (m in q) {
+                    deliver m
+                    processed++
+                }
+
+                if (queue.compareAndSet(ExecutingChannel.busyEmptyQueue, FQueue.emptyQueue))
+                    return
+
+                if (processed >= g.throughput) {
+                    // more messages arrived: let other channels run first
+                    g.executor.execute(this)
+                    return
+                }
+            }
+        }
+    }
+
+    private void deliver (M message) {
+        try {
+            if (message instanceof ExecutingChannel.ExecuteCommand)
+                ((ExecutingChannel.ExecuteCommand)message).run()
+            else
+                onMessage(message)
+        }
+        catch (Throwable cause) {
+            crashed(cause)
+        }
+    }
+
+    final <S> ExecutingChannel.ExecuteCommand<S> schedule (ExecutingChannel.ExecuteCommand<S> command) {
+        post((M)command)
+        command
+    }
+
+    final LightChannel getOwner () {
+        supervision?.owner
+    }
+
+    final FList<LightChannel> getChildren () {
+        def s = supervision
+        s ? s.children : FList.emptyList
+    }
+
+    /**
+     * Makes given channel supervised by this one. Failures of the child are reported to {@link #onChildCrashed}
+     */
+    final <C extends LightChannel> C link (C child) {
+        def cs = child.supervise()
+        if (!cs.owner.compareAndSet(null, this))
+            throw new IllegalStateException("${child} has owner already")
+
+        def s = supervise()
+        for (;;) {
+            def c = s.children
+            if (s.children.compareAndSet(c, c + child))
+                return child
+        }
+    }
+
+    final void unlink (LightChannel child) {
+        def s = supervision
+        if (!s)
+            return
+
+        for (;;) {
+            def c = s.children
+            if (s.children.compareAndSet(c, c - child))
+                break
+        }
+        def cs = child.supervision
+        if (cs)
+            cs.owner.compareAndSet(this, null)
+    }
+
+    /**
+     * Called in this channel when child failed to process message. By default passes failure to the group
+     */
+    protected void onChildCrashed (LightChannel child, Throwable cause) {
+        group.onCrash(child, cause)
+    }
+
+    private Supervision supervise () {
+        for (;;) {
+            def s = supervision
+            if (s)
+                return s
+            if (supervision.compareAndSet(null, new Supervision()))
+                return supervision
+        }
+    }
+
+    private void crashed (Throwable cause) {
+        def o = owner
+        if (o) {
+            def child = this
+            o.schedule {
+                o.onChildCrashed(child, cause)
+            }
+        }
+        else {
+            group.onCrash(this, cause)
+        }
+    }
+
+    private static final class Supervision {
+        volatile LightChannel owner
+
+        volatile FList<LightChannel> children = FList.emptyList
+    }
+}
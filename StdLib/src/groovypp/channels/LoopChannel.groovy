@@ -16,14 +16,28 @@
 
 package groovypp.channels
 
+import java.util.concurrent.Executor
+
+/**
+ * Channel running blocking loop (normally I/O) in a thread of its own
+ *
+ * The loop occupies its thread until the channel is stopped. To avoid pinning a thread of channel's executor
+ * set loopExecutor, for example to CallLaterExecutors.newVirtualThreadExecutor(),
+ * so each loop gets cheap virtual thread, while messages are still processed by channel's executor.
+ */
 @Typed abstract class LoopChannel<O extends SupervisedChannel> extends SupervisedChannel<O> {
     protected volatile boolean stopped
     protected volatile Thread  currentThread
 
+    /**
+     * Executor running the loop. Channel executor is used if not set
+     */
+    Executor loopExecutor
+
     protected abstract boolean doLoopAction ()
 
     protected void doStartup() {
-        executor.execute {
+        (loopExecutor ? loopExecutor : executor).execute {
             currentThread = Thread.currentThread()
             try {
                 while (!stopped) {
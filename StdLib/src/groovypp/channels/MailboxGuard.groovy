@@ -0,0 +1,260 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.BindLater
+import groovypp.concurrent.ExecutionMetrics
+import groovypp.concurrent.FList
+import groovypp.concurrent.FQueue
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Runtime state of channel mailbox bounded by {@link MailboxLimit}: number of limited messages in the mailbox
+ * and producers waiting for space. Each channel has guard of its own, so one limit may be shared by several channels.
+ *
+ * Mailbox elements are messages or {@link ExecutionMetrics.Stamped} wrapping them. Scheduled commands are never
+ * limited, so they are neither counted nor dropped.
+ */
+@Typed final class MailboxGuard {
+    /**
+     * Place for the message is reserved
+     */
+    static final int ACQUIRED = 0
+
+    /**
+     * Mailbox is full and the oldest limited message should be dropped to make place for the new one
+     */
+    static final int REPLACE = 1
+
+    /**
+     * Mailbox is full and message was offered, so it should not be added
+     */
+    static final int REFUSED = 2
+
+    /**
+     * Mailbox is full and message should be dropped
+     */
+    static final int DROPPED = 3
+
+    final MailboxLimit limit
+
+    /**
+     * Number of limited messages in the mailbox including ones, which place is reserved
+     */
+    private volatile int size
+
+    private final Object lock = new Object()
+
+    private volatile int blocked
+
+    private volatile FList<Availability> waiters = FList.emptyList
+
+    MailboxGuard (MailboxLimit limit) {
+        this.limit = limit
+    }
+
+    int getSize () {
+        size
+    }
+
+    boolean isFull () {
+        size >= limit.capacity
+    }
+
+    /**
+     * Reserves place for limited element applying overflow policy if mailbox is full.
+     * Throws RejectedExecutionException for REJECT policy and blocks for BLOCK one.
+     * Metrics of refused element are updated here, but dropped one should be passed to {@link #unwrapRejected} by caller
+     *
+     * @return one of ACQUIRED, REPLACE, REFUSED or DROPPED
+     */
+    int acquire (Object element, boolean offer) {
+        for (;;) {
+            def n = size
+            if (n < limit.capacity) {
+                if (size.compareAndSet(n, n + 1))
+                    return ACQUIRED
+                continue
+            }
+
+            if (offer) {
+                unwrapRejected(element)
+                return REFUSED
+            }
+
+            def policy = limit.policy
+            if (policy == MailboxLimit.Policy.BLOCK) {
+                await()
+                continue
+            }
+
+            if (policy == MailboxLimit.Policy.DROP_OLDEST)
+                return REPLACE
+
+            if (policy == MailboxLimit.Policy.REJECT) {
+                unwrapRejected(element)
+                throw new RejectedExecutionException("Mailbox is full")
+            }
+            return DROPPED
+        }
+    }
+
+    /**
+     * Counts element added without reservation, like one posted to the head of mailbox
+     */
+    void added (Object element) {
+        if (isLimited(element))
+            size.incrementAndGet()
+    }
+
+    /**
+     * Called by consumer after it took element from mailbox. Cheap when nobody waits for space
+     */
+    void taken (Object element) {
+        if (isLimited(element))
+            release(1)
+    }
+
+    /**
+     * Called by consumer after it took elements from mailbox
+     */
+    void takenAll (Iterable<Object> elements) {
+        def n = 0
+        for (e in elements)
+            if (isLimited(e))
+                n++
+        if (n)
+            release(n)
+    }
+
+    /**
+     * @return future bound with given channel as soon as mailbox is not full
+     */
+    <C> BindLater<C> whenAvailable (C channel) {
+        Availability<C> res = [channel]
+        if (!full) {
+            res.set(channel)
+            return res
+        }
+
+        for (;;) {
+            def w = waiters
+            if (waiters.compareAndSet(w, w + res))
+                break
+        }
+
+        // space could be freed before we registered
+        if (!full)
+            freed()
+        res
+    }
+
+    private void release (int n) {
+        for (;;) {
+            def s = size
+            if (size.compareAndSet(s, s - n))
+                break
+        }
+        freed()
+    }
+
+    /**
+     * Blocks calling thread while mailbox is full
+     */
+    private void await () {
+        blocked.incrementAndGet()
+        try {
+            synchronized (lock) {
+                while (full)
+                    lock.wait()
+            }
+        }
+        finally {
+            blocked.decrementAndGet()
+        }
+    }
+
+    private void freed () {
+        if (blocked) {
+            synchronized (lock) {
+                lock.notifyAll()
+            }
+        }
+
+        if (!waiters.empty) {
+            for (;;) {
+                def w = waiters
+                if (waiters.compareAndSet(w, FList.emptyList)) {
+                    for (a in w)
+                        a.set(a.channel)
+                    break
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest limited element from persistent queue. Commands before it keep their places
+     *
+     * @return removed element and rest of the queue or null if queue has no limited elements
+     */
+    static Pair<Object,FQueue<Object>> removeOldest (FQueue<Object> queue) {
+        List<Object> commands = []
+        def rest = queue
+        while (!rest.empty && !isLimited(rest.first)) {
+            def removed = rest.removeFirst()
+            commands << removed.first
+            rest = removed.second
+        }
+        if (rest.empty)
+            return null
+
+        def removed = rest.removeFirst()
+        rest = removed.second
+        for (int i = commands.size() - 1; i >= 0; --i)
+            rest = rest.addFirst(commands[i])
+        new Pair<Object,FQueue<Object>>(removed.first, rest)
+    }
+
+    static boolean isLimited (Object element) {
+        !(unwrap(element) instanceof ExecutingChannel.ExecuteCommand)
+    }
+
+    static Object unwrap (Object element) {
+        element instanceof ExecutionMetrics.Stamped ? ((ExecutionMetrics.Stamped)element).task : element
+    }
+
+    /**
+     * Unwraps element, which was not accepted, updating its metrics
+     */
+    static Object unwrapRejected (Object element) {
+        if (element instanceof ExecutionMetrics.Stamped) {
+            def stamped = (ExecutionMetrics.Stamped)element
+            stamped.metrics.rejected()
+            return stamped.task
+        }
+        element
+    }
+
+    private static final class Availability<C> extends BindLater<C> {
+        final C channel
+
+        Availability (C channel) {
+            this.channel = channel
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+/**
+ * Capacity of channel mailbox and policy applied when message is posted to full mailbox
+ *
+ * Besides the policy producers may use credit based flow control: offer () message, which fails instead of
+ * applying the policy, and wait for channel's whenAvailable () to be bound before offering again.
+ *
+ * Scheduled commands are never limited. Limit is immutable value, so it may be shared by several channels.
+ * Runtime state of each bounded mailbox is kept by {@link MailboxGuard} of its channel.
+ */
+@Typed final class MailboxLimit {
+    enum Policy {
+        /**
+         * post () throws RejectedExecutionException
+         */
+        REJECT,
+
+        /**
+         * the oldest message in the mailbox is dropped to make space
+         */
+        DROP_OLDEST,
+
+        /**
+         * posted message is dropped
+         */
+        DROP_NEWEST,
+
+        /**
+         * producer is blocked until there is space
+         */
+        BLOCK
+    }
+
+    final int capacity
+
+    final Policy policy
+
+    MailboxLimit (int capacity, Policy policy = Policy.REJECT) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity should be positive")
+        this.capacity = capacity
+        this.policy = policy
+    }
+}
@@ -18,6 +18,7 @@ package groovypp.channels
 
 import groovypp.concurrent.BindLater
 import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
 
 @Typed abstract class MessageChannel<T> implements Serializable {
 
@@ -28,6 +29,16 @@ import java.util.concurrent.Executor
         channel.post(message)
     }
 
+    /**
+     * Posts message and returns future bound with reply without blocking caller
+     *
+     * Receiver should answer with message.reply(...) or message.replyFailure(...).
+     * If timeoutMillis is positive and reply does not arrive in time, future fails with TimeoutException.
+     */
+    static <M extends ReplyRequiringMessage, R> BindLater<R> request(MessageChannel<M> channel, M message, long timeoutMillis) {
+        CorrelationTable.instance.request(channel, message, timeoutMillis)
+    }
+
     static <M extends ReplyRequiringMessage, R> Object requestAndWait(MessageChannel<M> channel, M message) {
         def binder = new BindLater()
         channel.request(message) { reply ->
@@ -67,6 +78,73 @@ import java.util.concurrent.Executor
         mapping
     }
 
+    /**
+     * Creates channel reducing every count messages and forwarding result to this one
+     */
+    final MessageChannel<T> window(int count, Function2<T,T,T> reducer) {
+        slidingWindow(count, count, reducer)
+    }
+
+    /**
+     * Creates channel reducing messages of last count ones every step messages
+     */
+    final MessageChannel<T> slidingWindow(int count, int step, Function2<T,T,T> reducer) {
+        def stage = WindowChannel.byCount(count, step, new WindowChannel.Reducing<T>(reducer))
+        stage.forwardTo = this
+        stage
+    }
+
+    /**
+     * Creates channel reducing messages received during each period of given duration.
+     * The window should be closed when not needed anymore, see {@link WindowChannel#close}
+     */
+    final WindowChannel<T,T> window(long duration, TimeUnit unit, Function2<T,T,T> reducer) {
+        slidingWindow(duration, duration, unit, reducer)
+    }
+
+    /**
+     * Creates channel reducing messages received during last duration every slide.
+     * The window should be closed when not needed anymore
+     */
+    final WindowChannel<T,T> slidingWindow(long duration, long slide, TimeUnit unit, Function2<T,T,T> reducer) {
+        def stage = WindowChannel.byTime(duration, slide, unit, new WindowChannel.Reducing<T>(reducer))
+        stage.forwardTo = this
+        stage
+    }
+
+    /**
+     * Creates channel forwarding lists of every count messages to this one
+     */
+    final <M> MessageChannel<M> window(int count) {
+        def stage = WindowChannel.byCount(count, count, new WindowChannel.Collecting<M>())
+        stage.forwardTo = (MessageChannel<List<M>>)this
+        stage
+    }
+
+    /**
+     * Creates channel forwarding lists of messages received during each period of given duration.
+     * The window should be closed when not needed anymore
+     */
+    final <M> WindowChannel<M,List<M>> window(long duration, TimeUnit unit) {
+        def stage = WindowChannel.byTime(duration, duration, unit, new WindowChannel.Collecting<M>())
+        stage.forwardTo = (MessageChannel<List<M>>)this
+        stage
+    }
+
+    /**
+     * Creates channel reducing messages with the same key received during each period of given duration
+     * and forwarding map from keys to results. The window should be closed when not needed anymore
+     */
+    final <K,M> WindowChannel<M,Map<K,M>> reduceByKey(long duration, TimeUnit unit, Function1<M,K> key, Function2<M,M,M> reducer) {
+        def stage = WindowChannel.byTime(duration, duration, unit, new WindowChannel.ReducingByKey<K,M>(key, reducer))
+        stage.forwardTo = (MessageChannel<Map<K,M>>)this
+        stage
+    }
+
+    /**
+     * Creates channel processing messages asynchronously in given executor.
+     * With AffinityExecutor the channel stays on one worker thread while it is busy
+     */
     final ExecutingChannel<T> async(Executor executor, boolean fair = false) {
         def that = this
         [
@@ -80,6 +158,25 @@ import java.util.concurrent.Executor
 
     static class ReplyRequiringMessage {
         MessageChannel replyTo
+
+        /**
+         * Id of request made by request(channel, message, timeoutMillis) or 0
+         */
+        long correlationId
+
+        /**
+         * Sends reply to requester
+         */
+        void reply(Object value) {
+            replyTo.post(correlationId ? new CorrelationTable.Reply(correlationId, value, false) : value)
+        }
+
+        /**
+         * Reports failure to requester. Requester waiting for plain reply receives the exception itself
+         */
+        void replyFailure(Throwable cause) {
+            replyTo.post(correlationId ? new CorrelationTable.Reply(correlationId, cause, true) : cause)
+        }
     }
 
     protected Object writeReplace () {
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.BindLater
+import groovypp.concurrent.MpscQueue
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+
+/**
+ * Non-blocking TCP transport for remote channels
+ *
+ * One selector thread accepts, connects and reads for all connections of the transport. Each connection is
+ * {@link RemoteMessageChannel.IOContext} processing outgoing messages in batches: all frames of a batch are
+ * written to one direct buffer and sent with one write. If the socket does not accept everything, the rest is sent
+ * when the selector reports the socket writable.
+ *
+ * Output buffer of connection holds at least the batch being written. When peer reads slower than messages are produced
+ * and more than maxOutputBuffer bytes are buffered, connection stops taking messages from its mailbox until
+ * the selector reports that the socket accepted enough of them, so messages wait in the mailbox, which can be
+ * bounded by {@link MailboxLimit}. No thread waits for the socket meanwhile.
+ *
+ * Frames are length prefixed. The first frame in each direction carries id of the sending host, so there is at most
+ * one connection per pair of hosts: if both hosts connect to each other simultaneously, both keep connection
+ * opened by the host with smaller id.
+ */
+@Typed class NioTransport {
+    static final int BUFFER_SIZE = 64*1024
+
+    static final int MAX_FRAME_SIZE = 64*1024*1024
+
+    final UUID hostId
+
+    final Executor executor
+
+    /**
+     * Channel receiving messages sent to IOContext.MAIN_ACTOR_ID. Should be set before first connection
+     */
+    MessageChannel mainActor
+
+    /**
+     * Maximal number of outgoing messages coalesced into one write
+     */
+    int maxBatchSize = 256
+
+    /**
+     * Maximal size of output buffer of a connection. Should be set before first connection
+     */
+    int maxOutputBuffer = 4*1024*1024
+
+    /**
+     * Limit of mailbox of each connection or null. Should be set before first connection
+     */
+    MailboxLimit mailboxLimit
+
+    private final Selector selector = Selector.open()
+
+    private final MpscQueue<Runnable> tasks = []
+
+    private final ConcurrentHashMap<UUID, Connection> connections = []
+
+    private final List<ServerSocketChannel> servers = []
+
+    private volatile boolean closed
+
+    private final Thread thread
+
+    NioTransport (Executor executor, UUID hostId = UUID.randomUUID()) {
+        this.executor = executor
+        this.hostId = hostId
+
+        Runnable selectLoop = { loop() }
+        thread = new Thread(selectLoop, "NioTransport-" + hostId)
+        thread.daemon = true
+        thread.start()
+    }
+
+    /**
+     * Starts accepting connections
+     *
+     * @return address the transport listens on, useful if port was 0
+     */
+    InetSocketAddress listen (InetSocketAddress address) {
+        def server = ServerSocketChannel.open()
+        server.socket().reuseAddress = true
+        server.socket().bind(address)
+        server.configureBlocking(false)
+
+        onSelector {
+            servers << server
+            server.register(selector, SelectionKey.OP_ACCEPT)
+        }
+        (InetSocketAddress)server.socket().localSocketAddress
+    }
+
+    /**
+     * Connects to remote transport
+     *
+     * @return future bound with connection when both hosts exchanged their ids
+     */
+    BindLater<Connection> connect (InetSocketAddress address) {
+        def socket = SocketChannel.open()
+        socket.configureBlocking(false)
+        socket.socket().tcpNoDelay = true
+
+        Connection connection = [this, socket, true]
+        def connected = socket.connect(address)
+        onSelector {
+            try {
+                connection.register(connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT)
+                if (connected)
+                    connection.connected()
+            }
+            catch (IOException e) {
+                connection.close(e)
+            }
+        }
+        connection.handshake
+    }
+
+    /**
+     * @return established connection with given host or null
+     */
+    Connection getConnection (UUID host) {
+        connections.get(host)
+    }
+
+    void close () {
+        closed = true
+        selector.wakeup()
+    }
+
+    private void onSelector (Runnable task) {
+        tasks.add(task)
+        selector.wakeup()
+    }
+
+    private void loop () {
+        try {
+            while (!closed) {
+                selector.select()
+
+                for (def node = tasks.poll(); node; node = tasks.poll())
+                    node.value.run()
+
+                def keys = selector.selectedKeys()
+                for (key in keys) {
+                    if (!key.valid)
+                        continue
+
+                    if (key.acceptable) {
+                        try {
+                            accept((ServerSocketChannel)key.channel())
+                        }
+                        catch (IOException e) {
+                            // for example, out of file descriptors: the server keeps listening
+                            onAcceptFailed(e)
+                        }
+                        continue
+                    }
+
+                    def connection = (Connection)key.attachment()
+                    try {
+                        if (key.connectable) {
+                            connection.socket.finishConnect()
+                            key.interestOps(SelectionKey.OP_READ)
+                            connection.connected()
+                        }
+                        if (key.valid && key.readable)
+                            connection.read()
+                        if (key.valid && key.writable)
+                            connection.writable()
+                    }
+                    catch (Throwable e) {
+                        connection.close(e)
+                    }
+                }
+                keys.clear()
+            }
+        }
+        finally {
+            for (c in connections.values())
+                c.close(null)
+            for (server in servers)
+                server.close()
+            for (key in selector.keys())
+                ((Connection)key.attachment())?.close(null)
+            selector.close()
+        }
+    }
+
+    /**
+     * Called on selector thread when accepting incoming connection failed
+     */
+    protected void onAcceptFailed (IOException cause) {
+        cause.printStackTrace()
+    }
+
+    private void accept (ServerSocketChannel server) {
+        def socket = server.accept()
+        if (!socket)
+            return
+
+        try {
+            socket.configureBlocking(false)
+            socket.socket().tcpNoDelay = true
+
+            Connection connection = [this, socket, false]
+            connection.register(SelectionKey.OP_READ)
+            connection.connected()
+        }
+        catch (IOException e) {
+            socket.close()
+            throw e
+        }
+    }
+
+    private void established (Connection connection) {
+        def existing = connections.putIfAbsent(connection.foreignHost, connection)
+        if (!existing) {
+            connection.handshake.set(connection)
+            return
+        }
+
+        // both hosts agree to keep connection opened by the one with smaller id
+        def keepInitiated = hostId.compareTo(connection.foreignHost) < 0
+        if (connection.initiator == keepInitiated && existing.initiator != keepInitiated && connections.replace(connection.foreignHost, existing, connection)) {
+            connection.handshake.set(connection)
+            existing.close(null)
+        }
+        else {
+            connection.handshake.set(existing)
+            connection.close(null)
+        }
+    }
+
+    /**
+     * Connection to remote host
+     */
+    static class Connection extends RemoteMessageChannel.IOContext {
+        private static final Object WRITABLE = new Object()
+
+        final NioTransport transport
+
+        final SocketChannel socket
+
+        /**
+         * True if connection was opened by this host
+         */
+        final boolean initiator
+
+        final BindLater<Connection> handshake = []
+
+        private SelectionKey key
+
+        private volatile int closed
+
+        private volatile boolean ready
+
+        private volatile boolean writeInterest
+
+        /**
+         * True while the connection takes no messages, because output buffer is full
+         */
+        private volatile boolean suspended
+
+        /**
+         * Accessed by selector thread only
+         */
+        private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE)
+
+        /**
+         * Bytes of incoming frame. Reused for the next frame unless it was unusually big
+         */
+        private byte[] frame = new byte[BUFFER_SIZE]
+
+        private int frameLength = -1
+
+        private int framePos
+
+        /**
+         * Accessed by processing thread only
+         */
+        private ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE)
+
+        Connection (NioTransport transport, SocketChannel socket, boolean initiator) {
+            this.transport = transport
+            this.socket = socket
+            this.initiator = initiator
+            executor = transport.executor
+            maxBatchSize = transport.maxBatchSize
+            mainActor = transport.mainActor
+            myHost = transport.hostId
+            if (transport.mailboxLimit)
+                limit = transport.mailboxLimit
+
+            output.putInt(16)
+            output.putLong(myHost.mostSignificantBits)
+            output.putLong(myHost.leastSignificantBits)
+        }
+
+        void sendBytes (byte[] bytes) {
+            sendBytes(bytes, 0, bytes.length)
+        }
+
+        void sendBytes (byte[] bytes, int offset, int length) {
+            reserve(4 + length)
+            output.putInt(length)
+            output.put(bytes, offset, length)
+        }
+
+        protected void onBatch (List messages) {
+            super.onBatch(messages)
+            flush()
+        }
+
+        protected void onMessage (Object message) {
+            if (message !== WRITABLE)
+                super.onMessage(message)
+        }
+
+        protected boolean canTake () {
+            if (closed != 0 || output.position() < transport.maxOutputBuffer)
+                return true
+
+            // suspend before writing, so the selector reporting socket writable always sees the flag
+            suspended = true
+            flush()
+            if (closed == 0 && output.position() >= transport.maxOutputBuffer)
+                return false
+
+            // the selector might resume the connection already
+            suspended.compareAndSet(true, false)
+        }
+
+        boolean isClosed () {
+            closed != 0
+        }
+
+        void close () {
+            close(null)
+        }
+
+        void close (Throwable cause) {
+            if (!closed.compareAndSet(0, 1))
+                return
+
+            try {
+                socket.close()
+            }
+            catch (IOException ignore) {
+            }
+
+            if (foreignHost)
+                transport.connections.remove(foreignHost, this)
+            super.close()
+
+            // let pending messages go, so senders are not blocked by closed connection
+            if (suspended.compareAndSet(true, false))
+                resume()
+
+            if (!handshake.done)
+                handshake.setException(cause ?: new ClosedChannelException())
+        }
+
+        private void register (int ops) {
+            key = socket.register(transport.selector, ops, this)
+        }
+
+        private void connected () {
+            ready = true
+            wake()
+        }
+
+        private void writable () {
+            writeInterest = false
+            key.interestOps(SelectionKey.OP_READ)
+            wake()
+        }
+
+        /**
+         * Makes processing thread write buffered bytes
+         */
+        private void wake () {
+            if (suspended.compareAndSet(true, false))
+                resume()
+            else
+                postFirst(WRITABLE)
+        }
+
+        private void read () {
+            if (socket.read(input) < 0) {
+                close(null)
+                return
+            }
+
+            input.flip()
+            for (;;) {
+                if (frameLength < 0) {
+                    if (input.remaining() < 4)
+                        break
+
+                    def length = input.getInt()
+                    if (length < 0 || length > MAX_FRAME_SIZE)
+                        throw new IOException("Bad frame length $length")
+                    if (length > frame.length || (frame.length > BUFFER_SIZE && length <= BUFFER_SIZE))
+                        frame = new byte[Math.max(length, BUFFER_SIZE)]
+                    frameLength = length
+                    framePos = 0
+                }
+
+                def chunk = Math.min(input.remaining(), frameLength - framePos)
+                input.get(frame, framePos, chunk)
+                framePos += chunk
+                if (framePos < frameLength)
+                    break
+
+                def size = frameLength
+                frameLength = -1
+                received(frame, size)
+            }
+            input.compact()
+        }
+
+        private void received (byte[] bytes, int length) {
+            if (foreignHost) {
+                receiveBytes(bytes, 0, length)
+                return
+            }
+
+            if (length != 16)
+                throw new IOException("Bad handshake")
+            def buffer = ByteBuffer.wrap(bytes, 0, length)
+            foreignHost = new UUID(buffer.getLong(), buffer.getLong())
+            transport.established(this)
+        }
+
+        /**
+         * Makes space for at least size bytes in output buffer, writing or growing it.
+         * Buffer grows beyond maxOutputBuffer to hold the whole batch, canTake stops taking messages afterwards
+         */
+        private void reserve (int size) {
+            if (output.remaining() >= size)
+                return
+
+            flush()
+            if (output.remaining() >= size)
+                return
+
+            if (closed != 0)
+                throw new ClosedChannelException()
+
+            def grown = ByteBuffer.allocateDirect(Math.max(Math.min(output.capacity() * 2, transport.maxOutputBuffer), output.position() + size))
+            output.flip()
+            grown.put(output)
+            output = grown
+        }
+
+        private void flush () {
+            if (!ready || closed != 0 || output.position() == 0 || writeInterest)
+                return
+
+            output.flip()
+            try {
+                socket.write(output)
+            }
+            catch (IOException e) {
+                close(e)
+                return
+            }
+            output.compact()
+
+            if (output.position()) {
+                // socket buffer is full: continue when selector reports socket writable
+                writeInterest = true
+                transport.onSelector {
+                    if (key.valid)
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.ExecutionMetrics
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Channel processing messages with different keys in parallel and messages with the same key in order
+ *
+ * Key of each message is hashed to one of partitionCount serial mailboxes. When partition count changes,
+ * new partitions hold messages until all messages posted to old partitions are processed,
+ * so order for each key is preserved during rebalancing.
+ *
+ * If metricsName is set, each partition records its own metrics named metricsName[index].
+ */
+@Typed abstract class PartitionedChannel<M,K> extends MessageChannel<M> {
+    /**
+     * non volatile. should be effectively final
+     */
+    Executor executor
+
+    /**
+     * non volatile. should be set before first message posted
+     */
+    String metricsName
+
+    private int initialCount = Runtime.runtime.availableProcessors()
+
+    private volatile Routing routing
+
+    /**
+     * Maps message to its ordering key
+     */
+    abstract protected K messageKey(M message)
+
+    /**
+     * Called for messages of the same key serially and in order of posting
+     */
+    abstract protected void onMessage(M message)
+
+    final void post(M message) {
+        def key = messageKey(message)
+        def cell = Routing.cell()
+        for (;;) {
+            def r = routing ?: start()
+            r.posting.incrementAndGet(cell)
+            try {
+                // re-check, so rebalancing waits for this post if it started with old partitions
+                if (r === routing) {
+                    r.partitions[index(key, r.partitions.length)].post(message)
+                    return
+                }
+            }
+            finally {
+                r.posting.decrementAndGet(cell)
+            }
+        }
+    }
+
+    int getPartitionCount() {
+        def r = routing
+        r ? r.partitions.length : initialCount
+    }
+
+    /**
+     * Changes number of partitions. Returns without waiting for messages of old partitions to be processed
+     */
+    synchronized void setPartitionCount(int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("Partition count should be positive")
+
+        def old = routing
+        if (!old) {
+            initialCount = count
+            return
+        }
+        if (old.partitions.length == count)
+            return
+
+        Routing r = [this, count, old]
+        routing = r
+
+        // posts, which started with old partitions, should land before barriers
+        while (old.postingCount())
+            Thread.yield()
+
+        AtomicInteger remaining = [old.partitions.length]
+        Runnable drained = {
+            if (!remaining.decrementAndGet()) {
+                for (p in r.partitions)
+                    p.release()
+                closeUnused(old.metrics)
+            }
+        }
+        for (p in old.partitions)
+            p.post(new Barrier(drained))
+    }
+
+    /**
+     * @return metrics of partitions or empty list if metricsName is not set
+     */
+    List<ExecutionMetrics> getPartitionMetrics() {
+        def r = routing
+        r && metricsName ? Arrays.asList(r.metrics) : Collections.<ExecutionMetrics>emptyList()
+    }
+
+    /**
+     * Closes metrics of removed partitions unless partitions were added back meanwhile
+     */
+    private synchronized void closeUnused(ExecutionMetrics[] metrics) {
+        def used = Arrays.asList(routing.metrics)
+        for (m in metrics) {
+            if (m && !used.any { it === m })
+                m.close()
+        }
+    }
+
+    private synchronized Routing start() {
+        if (!routing)
+            routing = new Routing(this, initialCount, null)
+        routing
+    }
+
+    private static int index(Object key, int count) {
+        if (key == null)
+            return 0
+        int h = key.hashCode()
+        h ^= (h >>> 16)
+        (h & 0x7fffffff) % count
+    }
+
+    /**
+     * Marks point in partition's mailbox, where all earlier messages were processed
+     */
+    private static final class Barrier {
+        final Runnable action
+
+        Barrier(Runnable action) {
+            this.action = action
+        }
+    }
+
+    private static final class Partition<M> extends ExecutingChannel<M> {
+        final PartitionedChannel<M,?> owner
+
+        /**
+         * Messages and barriers received while partition is held. Accessed by processing thread only
+         */
+        private List pending
+
+        Partition(PartitionedChannel<M,?> owner, ExecutionMetrics metrics, boolean held) {
+            this.owner = owner
+            this.executor = owner.executor
+            this.metrics = metrics
+            if (held)
+                pending = []
+        }
+
+        protected void onMessage(M message) {
+            if (message instanceof ExecutingChannel.ExecuteCommand) {
+                super.onMessage(message)
+                return
+            }
+
+            if (pending != null) {
+                pending << message
+                return
+            }
+
+            process(message)
+        }
+
+        void release() {
+            schedule {
+                def held = pending
+                pending = null
+                for (m in held)
+                    process((M)m)
+            }
+        }
+
+        private void process(M message) {
+            if (message instanceof Barrier)
+                ((Barrier)message).action.run()
+            else
+                owner.onMessage(message)
+        }
+    }
+
+    private static final class Routing {
+        private static final int PAD_SHIFT = 4
+        private static final int STRIPES = 16
+
+        final Partition[] partitions
+
+        final ExecutionMetrics[] metrics
+
+        /**
+         * Number of posts in progress per stripe. Each thread always uses the same stripe
+         */
+        final AtomicIntegerArray posting = [STRIPES << PAD_SHIFT]
+
+        Routing(PartitionedChannel owner, int count, Routing previous) {
+            partitions = new Partition[count]
+            metrics = new ExecutionMetrics[count]
+            for (i in 0..<count) {
+                if (owner.metricsName)
+                    metrics[i] = previous && i < previous.metrics.length ? previous.metrics[i] : metricsNamed(owner.metricsName + "[" + i + "]")
+                partitions[i] = new Partition(owner, metrics[i], previous != null)
+            }
+        }
+
+        private static ExecutionMetrics metricsNamed(String name) {
+            ExecutionMetrics.get(name) ?: ExecutionMetrics.create(name)
+        }
+
+        static int cell() {
+            ((int)Thread.currentThread().id & (STRIPES - 1)) << PAD_SHIFT
+        }
+
+        int postingCount() {
+            int sum = 0
+            for (int i = 0; i != STRIPES; ++i)
+                sum += posting.get(i << PAD_SHIFT)
+            sum
+        }
+    }
+}
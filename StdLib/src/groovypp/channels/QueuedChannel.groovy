@@ -16,14 +16,21 @@
 
 package groovypp.channels
 
+import groovypp.concurrent.BindLater
 import groovypp.concurrent.FQueue
+import groovypp.concurrent.ExecutionMetrics
+import groovypp.concurrent.Tracer
 
 /**
  * Message channel with incoming queue
  */
 @Typed abstract class QueuedChannel<M> extends MessageChannel<M> {
 
-    protected volatile FQueue<M> queue = FQueue.emptyQueue
+    /**
+     * Elements are messages or, if metrics are set, {@link ExecutionMetrics.Stamped} wrapping them.
+     * Subclasses should pass elements taken from the queue to {@link #deliver}, which unwraps them
+     */
+    protected volatile FQueue<Object> queue = FQueue.emptyQueue
 
     /**
      * Special tag saying that processing thread(reader) are processing last message in the queue.
@@ -31,32 +38,193 @@ import groovypp.concurrent.FQueue
      */
     protected static final FQueue busyEmptyQueue = FQueue.emptyQueue + null
 
+    /**
+     * non volatile. should be effectively final
+     * If set, messages are stamped when posted and measured when passed to {@link #deliver}
+     */
+    ExecutionMetrics metrics
+
+    /**
+     * State of bounded queue or null. Non volatile, should be effectively final
+     */
+    private MailboxGuard guard
+
+    /**
+     * Posts message applying overflow policy of the limit if queue is full
+     */
     final void post(M message) {
+        enqueue(message, false)
+    }
+
+    /**
+     * Posts message if queue is not full
+     *
+     * @return false if queue is full. Overflow policy is not applied
+     */
+    final boolean offer(M message) {
+        enqueue(message, true)
+    }
+
+    /**
+     * If set, queue is bounded and overflow policy of the limit applies to posted messages.
+     * Subclasses should call {@link #messagesTaken} after they remove elements from the queue.
+     * Should be set before first message posted
+     */
+    void setLimit (MailboxLimit limit) {
+        guard = limit ? new MailboxGuard(limit) : null
+    }
+
+    MailboxLimit getLimit () {
+        guard?.limit
+    }
+
+    final boolean isFull() {
+        def g = guard
+        g && g.full
+    }
+
+    /**
+     * @return future bound with this channel as soon as queue is not full
+     */
+    final BindLater<QueuedChannel<M>> whenAvailable() {
+        def g = guard
+        if (!g) {
+            BindLater<QueuedChannel<M>> res = []
+            res.set(this)
+            return res
+        }
+        g.whenAvailable(this)
+    }
+
+    /**
+     * Called with message dropped because of overflow policy
+     */
+    protected void onDropped(M message) {
+    }
+
+    /**
+     * Frees space of elements taken and wakes up producers waiting for it.
+     * Should be called by subclasses after elements removed from the queue
+     */
+    protected final void messagesTaken(Iterable<Object> taken) {
+        guard?.takenAll(taken)
+    }
+
+    /**
+     * Same as {@link #messagesTaken} for single element
+     */
+    protected final void messageTaken(Object taken) {
+        guard?.taken(taken)
+    }
+
+    private boolean enqueue(M message, boolean offer) {
+        def recorder = metrics
+        Object element = recorder ? recorder.stamp(message) : message
+
+        def g = guard
+        def acquired = g ? g.acquire(element, offer) : MailboxGuard.ACQUIRED
+        if (acquired == MailboxGuard.REFUSED)
+            return false
+        if (acquired == MailboxGuard.DROPPED) {
+            onDropped((M)MailboxGuard.unwrapRejected(element))
+            return false
+        }
+
+        Tracer.CasRetries retries = null
         for (;;) {
             def oldQueue = queue
-            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue) + message
+            def base = oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue
+
+            FQueue<Object> newQueue
+            Pair<Object,FQueue<Object>> oldest = null
+            if (acquired == MailboxGuard.REPLACE) {
+                // the place of dropped message goes to the new one, so size of the guard does not change
+                oldest = MailboxGuard.removeOldest(base)
+                if (!oldest) {
+                    onDropped((M)MailboxGuard.unwrapRejected(element))
+                    return false
+                }
+                newQueue = oldest.second.addLast(element)
+            }
+            else {
+                newQueue = base.addLast(element)
+            }
+
             if (queue.compareAndSet(oldQueue, newQueue)) {
                 signalPost(oldQueue, newQueue)
-                return
+                if (oldest)
+                    onDropped((M)MailboxGuard.unwrapRejected(oldest.first))
+                retries?.report(this)
+                return true
             }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
+    /**
+     * Posts message to the head of queue. Limit does not apply, but the message takes place in the queue
+     */
     final void postFirst(M message) {
+        def recorder = metrics
+        Object element = recorder ? recorder.stamp(message) : message
+        guard?.added(element)
+
+        Tracer.CasRetries retries = null
         for (;;) {
             def oldQueue = queue
-            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addFirst(message)
+            def newQueue = (oldQueue === busyEmptyQueue ? FQueue.emptyQueue : oldQueue).addFirst(element)
             if (queue.compareAndSet(oldQueue, newQueue)) {
                 signalPost(oldQueue, newQueue)
+                retries?.report(this)
                 return
             }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     /**
      * Action (normally scheduling logic) to be taken after a message placed in to incoming queue
      */
-    protected abstract void signalPost (FQueue<M> oldQueue, FQueue<M> newQueue)
+    protected abstract void signalPost (FQueue<Object> oldQueue, FQueue<Object> newQueue)
+
+    /**
+     * Passes message to onMessage unwrapping and measuring it if the message was stamped by metrics or tracing is on.
+     * Subclasses should pass elements taken from the queue here instead of calling onMessage directly
+     */
+    protected final void deliver(Object element) {
+        def tracer = Tracer.active(Tracer.MESSAGES)
+        if (!tracer && !(element instanceof ExecutionMetrics.Stamped)) {
+            onMessage((M)element)
+            return
+        }
+
+        ExecutionMetrics.Stamped stamped = null
+        M message
+        if (element instanceof ExecutionMetrics.Stamped) {
+            stamped = (ExecutionMetrics.Stamped)element
+            message = (M)stamped.task
+        }
+        else {
+            message = (M)element
+        }
+
+        def span = tracer?.begin(Tracer.MESSAGES)
+        def start = stamped ? stamped.metrics.started(stamped) : System.nanoTime()
+        def ok = false
+        try {
+            onMessage message
+            ok = true
+        }
+        finally {
+            if (stamped) {
+                if (ok)
+                    stamped.metrics.completed(start)
+                else
+                    stamped.metrics.failed(start)
+            }
+            tracer?.messageProcessed(span, this, message, System.nanoTime() - start)
+        }
+    }
 
     /**
      * Asynchronous message processing callback
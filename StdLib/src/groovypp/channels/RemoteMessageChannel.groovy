@@ -18,6 +18,7 @@ package groovypp.channels
 
 import java.util.concurrent.ConcurrentHashMap
 import groovypp.util.CachingClassLoader
+import groovypp.util.ClassDictionary
 import groovypp.util.SerialOutputStream
 import groovypp.util.SerialInputStream
 import groovypp.util.WeakValueMap
@@ -32,6 +33,13 @@ import groovypp.util.WeakValueMap
         this
     }
 
+    /**
+     * Id of the channel on the host it was exported from
+     */
+    UUID getSerialId () {
+        serialId
+    }
+
     void post(M message) {
         ioContext.post (new ForwardMessageToBeSent(forwardTo:serialId, message:message))
     }
@@ -67,7 +75,7 @@ import groovypp.util.WeakValueMap
                 context.getBySerialId(serialId)
             }
             else {
-                context.getRemoteBySerialId(serialId)
+                context.resolveRemote(serialId)
             }
         }
 
@@ -102,32 +110,134 @@ import groovypp.util.WeakValueMap
         private final ConcurrentHashMap<UUID, Remoteable> reversed = []
         private final RemoteChannelMap remote = [this]
 
+        private static final int SAME_STREAM = 0
+        private static final int NEW_STREAM  = 1
+        private static final byte [] EMPTY = new byte[0]
+
+        /**
+         * Serialization state kept for the life of connection, so each message costs neither new streams
+         * nor names of classes sent before. Used by processing thread only
+         *
+         * Frame is stream flag, names of classes new to the other side, stream header and the message.
+         * Names go first, so reader learns all of them even if the message fails to deserialize.
+         * Each frame has stream header, so reader can start new stream after such failure
+         */
+        private final FrameOutputStream outBuffer = []
+        private final ClassDictionary outClasses = []
+        private SerialOutputStream out
+
+        /**
+         * Deserialization state. Used by receiving thread only
+         */
+        private final FrameInputStream inBuffer = []
+        private final ClassDictionary inClasses = []
+        private SerialInputStream inp
+
         private static final Remoteable dummy = [null, null]
 
+        /**
+         * Duration of leases. Exported channel, which the other host did not renew for this time, is released.
+         * Leases of used proxies are renewed three times per lease duration, so both ends should agree on the value
+         */
+        long leaseMillis = 60000L
+
+        private volatile TimerTask leaseTask
+
+        private volatile boolean released
+
+        private static final Object LEASE_TICK = new Object()
+
         Remoteable makeRemoteable(MessageChannel object) {
-            def res = exposed.get(object)
-            if(!res) {
-                def id = UUID.randomUUID()
-                while (reversed.putIfAbsent(id, dummy)) {
-                    id = UUID.randomUUID()
-                }
-                res = new Remoteable(object, id)
-                def pif = exposed.putIfAbsent(object, res)
-                if (pif) {
-                    res = pif
-                    reversed.remove(id)
+            for (;;) {
+                def res = exposed.get(object)
+                if(!res) {
+                    def id = UUID.randomUUID()
+                    while (reversed.putIfAbsent(id, dummy)) {
+                        id = UUID.randomUUID()
+                    }
+                    res = new Remoteable(object, id)
+                    def pif = exposed.putIfAbsent(object, res)
+                    if (pif) {
+                        res = pif
+                        reversed.remove(id)
+                    }
+                    else {
+                        reversed.put(id, res)
+                    }
                 }
-                else {
-                    reversed.put(id, res)
+
+                if (res.addRef(leaseMillis)) {
+                    startLeases()
+                    return res
                 }
+
+                // released concurrently, so export the channel again
+                unexport(res)
+            }
+        }
+
+        private void unexport(Remoteable res) {
+            exposed.remove(res.object, res)
+            reversed.remove(res.serialID, res)
+        }
+
+        /**
+         * Releases all exported channels and stops renewal of leases. Implementation of the context should call it
+         * when its connection is closed, otherwise shared timer keeps renewing leases of the context forever.
+         * Leases are not renewed after that point even if the context is used again
+         */
+        void close() {
+            released = true
+            leaseTask?.cancel()
+            for (res in reversed.values()) {
+                if (res !== dummy && res.expire(Long.MAX_VALUE))
+                    unexport(res)
+            }
+        }
+
+        private void startLeases() {
+            if (leaseTask)
+                return
+
+            TimerTask task = { post(LEASE_TICK) }
+            if (leaseTask.compareAndSet(null, task)) {
+                globalChannelsTimer.schedule(task, leaseMillis / 3, leaseMillis / 3)
+                // close() could miss the task
+                if (released)
+                    task.cancel()
+            }
+        }
+
+        /**
+         * Renews leases of all proxies still in use in one message and releases expired exports
+         */
+        private void onLeaseTick() {
+            List<UUID> used = []
+            for (e in remote.entrySet()) {
+                if (e.key != MAIN_ACTOR_ID && e.value.get())
+                    used << e.key
+            }
+            if (used)
+                sendOverWire(new RenewLeases(serialIds: used.toArray(new UUID[used.size()])))
+
+            def now = System.currentTimeMillis()
+            for (res in reversed.values()) {
+                if (res !== dummy && res.expire(now))
+                    unexport(res)
             }
-            res.addRef()
         }
 
         static ThreadLocal<IOContext> context = []
 
         abstract void sendBytes(byte [] bytes)
 
+        /**
+         * Sends length bytes starting from offset. The array may be reused by caller after return
+         */
+        void sendBytes(byte [] bytes, int offset, int length) {
+            sendBytes(Arrays.copyOfRange(bytes, offset, offset + length))
+        }
+
         protected void onMessage(def message) {
             switch(message) {
                 case ForwardMessageToBeSent:
@@ -138,6 +248,22 @@ import groovypp.util.WeakValueMap
                        getBySerialId(message.forwardTo)?.post(message.message) 
                     break
 
+                case ForgetRemote:
+                        def res = reversed.get(message.serialId)
+                        if (res && res !== dummy && res.releaseRef(message.count))
+                            unexport(res)
+                    break
+
+                case RenewLeases:
+                        def expiresAt = System.currentTimeMillis() + leaseMillis
+                        for (id in message.serialIds)
+                            reversed.get(id)?.renew(expiresAt)
+                    break
+
+                case LEASE_TICK:
+                        onLeaseTick()
+                    break
+
                 default:
                     super.onMessage(message)
             }
@@ -145,38 +271,76 @@ import groovypp.util.WeakValueMap
 
         protected void sendOverWire(def object) {
             assert !IOContext.context.get()
-            def bos = new ByteArrayOutputStream()
+            def buffer = outBuffer
             try {
                 IOContext.context.set(this)
-                def out = new SerialOutputStream(bos)
+                buffer.reset()
+                buffer.write(out == null ? NEW_STREAM : SAME_STREAM)
+                // no new class names, replaced below otherwise
+                buffer.write(0)
+                if (out == null) {
+                    out = new SerialOutputStream(buffer, outClasses)
+                }
+                else {
+                    buffer.write(ObjectStreamConstants.STREAM_VERSION)
+                }
+                // drops references to objects of previous message, but not class names in dictionary
+                out.reset()
                 out.writeObject object
-                // we don't close with purpose
-                // out.close()
+                out.flush()
+                if (outClasses.hasAdded()) {
+                    def added = new ByteArrayOutputStream()
+                    outClasses.writeAdded(added)
+                    buffer.replace(1, added.toByteArray())
+                }
+                outClasses.commit()
+            }
+            catch (Throwable t) {
+                // state of the stream is unknown, so the next message starts a new one
+                outClasses.rollback()
+                out = null
+                throw t
             }
             finally {
                 IOContext.context.remove()
             }
 
-            sendBytes(bos.toByteArray())
+            sendBytes(buffer.bytes, 0, buffer.size())
+            buffer.release()
         }
 
         void receiveBytes(byte [] bytes) {
+            receiveBytes(bytes, 0, bytes.length)
+        }
+
+        /**
+         * Deserializes message from given bytes. The array may be reused by caller after return.
+         * Should not be called concurrently for the same context
+         */
+        void receiveBytes(byte [] bytes, int offset, int length) {
             assert !IOContext.context.get()
-            Pair<UUID,Object> msg
             try {
                 IOContext.context.set(this)
-                def inp = new SerialInputStream(new ByteArrayInputStream(bytes), classLoader)
+                inBuffer.setBytes(bytes, offset + 1, length - 1)
+                inClasses.readAdded(inBuffer)
+                if (bytes[offset] == NEW_STREAM || inp == null)
+                    inp = new SerialInputStream(inBuffer, classLoader, inClasses)
+                else
+                    inBuffer.skip(1)
                 def received = inp.readObject()
                 post(received)
                 // we don't close with purpose
                 // inp.close ()
             }
+            catch (Throwable t) {
+                // state of the stream is unknown, so the next frame starts new one
+                inp = null
+                throw t
+            }
             finally {
                 IOContext.context.remove()
+                inBuffer.setBytes(EMPTY, 0, 0)
             }
-
-            if (msg)
-                getBySerialId(msg.first)?.post(msg.second)
         }
 
         MessageChannel getBySerialId (UUID serialId) {
@@ -185,11 +349,89 @@ import groovypp.util.WeakValueMap
 
         RemoteMessageChannel getRemoteBySerialId(UUID serialId) {
             def res = remote.get(serialId)?.get()
-            res ? res : remote.putIfNotYet(serialId, new RemoteMessageChannel(hostId:foreignHost, serialId:serialId, ioContext:this))
+            if (res)
+                return res
+
+            if (serialId != MAIN_ACTOR_ID)
+                startLeases()
+            remote.putIfNotYet(serialId, new RemoteMessageChannel(hostId:foreignHost, serialId:serialId, ioContext:this))
+        }
+
+        /**
+         * Returns proxy for channel received from the other host and counts the reference,
+         * so the other host can release the channel when all received references are forgotten
+         */
+        RemoteMessageChannel resolveRemote(UUID serialId) {
+            if (serialId == MAIN_ACTOR_ID)
+                return getRemoteBySerialId(serialId)
+
+            for (;;) {
+                def res = getRemoteBySerialId(serialId)
+                def ref = (ProxyRef)remote.get(serialId)
+                if (ref && ref.get() === res) {
+                    ref.received.incrementAndGet()
+                    return res
+                }
+            }
+        }
+
+        /**
+         * Tells the other host that count references to its channel were received by proxy, which is not used anymore
+         */
+        void sendForget(UUID uuid, int count) {
+            schedule {
+                sendOverWire(new ForgetRemote(serialId:uuid, count:count))
+            }
+        }
+    }
+
+    /**
+     * Output buffer, which gives access to its bytes without copying and shrinks after unusually big message
+     */
+    private static class FrameOutputStream extends ByteArrayOutputStream {
+        private static final int INITIAL_SIZE = 1024
+        private static final int MAX_RETAINED_SIZE = 64*1024
+
+        FrameOutputStream() {
+            super(INITIAL_SIZE)
+        }
+
+        byte [] getBytes() {
+            buf
         }
 
-        void sendForget(UUID uuid) {
-            return 
+        /**
+         * Replaces byte at index with given bytes
+         */
+        void replace(int index, byte [] bytes) {
+            def grow = bytes.length - 1
+            if (count + grow > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + grow))
+            System.arraycopy(buf, index + 1, buf, index + bytes.length, count - index - 1)
+            System.arraycopy(bytes, 0, buf, index, bytes.length)
+            count += grow
+        }
+
+        void release() {
+            if (buf.length > MAX_RETAINED_SIZE)
+                buf = new byte[INITIAL_SIZE]
+            count = 0
+        }
+    }
+
+    /**
+     * Input stream over bytes of the current frame
+     */
+    private static class FrameInputStream extends ByteArrayInputStream {
+        FrameInputStream() {
+            super(new byte[0])
+        }
+
+        void setBytes(byte [] bytes, int offset, int length) {
+            buf = bytes
+            pos = offset
+            count = offset + length
+            mark = offset
         }
     }
 
@@ -200,18 +442,50 @@ import groovypp.util.WeakValueMap
             this.ioContext = ioContext
         }
 
+        protected WeakValueMap.WeakValue<UUID,RemoteMessageChannel> createValue (UUID key, RemoteMessageChannel value) {
+            new ProxyRef(this, key, value)
+        }
+
         boolean finalizeValueRef (WeakValueMap.WeakValue<UUID,RemoteMessageChannel> ref) {
-            if(super.finalizeValueRef(ref)) {
-//                ioContext.sendForget(key)
-            }
+            def removed = super.finalizeValueRef(ref)
+            // forget even replaced reference, because references it received are counted by the other host
+            def received = ((ProxyRef)ref).received
+            if (received)
+                ioContext.sendForget(((ProxyRef)ref).serialId, received)
+            removed
+        }
+    }
+
+    /**
+     * Weak reference to proxy counting how many times the remote channel was received
+     */
+    private static final class ProxyRef extends WeakValueMap.WeakValue<UUID,RemoteMessageChannel> {
+        final UUID serialId
+
+        volatile int received
+
+        ProxyRef(RemoteChannelMap map, UUID key, RemoteMessageChannel value) {
+            super(map, key, value)
+            serialId = key
         }
     }
 
+    /**
+     * Channel exported to other host
+     *
+     * Counts references sent to the other host. The channel is released when the other host forgot all of them
+     * or did not renew its lease in time. Released channel can not be referenced again.
+     */
     static class Remoteable<T> {
         private final T object
 
+        /**
+         * Number of references sent, -1 after release
+         */
         private transient volatile int refs
 
+        private transient volatile long expiresAt
+
         UUID serialID
 
         Remoteable(T object, UUID id) {
@@ -219,14 +493,56 @@ import groovypp.util.WeakValueMap
             this.serialID = id
         }
 
-        Remoteable<T> addRef () {
-            refs.incrementAndGet()
-            this
+        /**
+         * Counts reference about to be sent and extends lease
+         *
+         * @return false if the channel was already released
+         */
+        boolean addRef (long leaseMillis) {
+            for (;;) {
+                def r = refs
+                if (r < 0)
+                    return false
+                if (refs.compareAndSet(r, r + 1)) {
+                    renew(System.currentTimeMillis() + leaseMillis)
+                    return true
+                }
+            }
         }
 
-        void releaseRef () {
-            if(refs.decrementAndGet() == 0) {
-                // @todo
+        /**
+         * Forgets references received by the other host
+         *
+         * @return true if this released the channel
+         */
+        boolean releaseRef (int count = 1) {
+            for (;;) {
+                def r = refs
+                if (r < 0)
+                    return false
+                def left = r - count
+                if (refs.compareAndSet(r, left > 0 ? left : -1))
+                    return left <= 0
+            }
+        }
+
+        void renew (long expiresAt) {
+            if (this.expiresAt < expiresAt)
+                this.expiresAt = expiresAt
+        }
+
+        /**
+         * Releases the channel if its lease expired before given time
+         *
+         * @return true if this released the channel
+         */
+        boolean expire (long now) {
+            for (;;) {
+                def r = refs
+                if (r < 0 || expiresAt >= now)
+                    return false
+                if (refs.compareAndSet(r, -1))
+                    return true
             }
         }
     }
@@ -243,4 +559,44 @@ import groovypp.util.WeakValueMap
          UUID   forwardTo
          Object message
      }
+
+    /**
+     * Tells exporting host that count references to the channel are not used anymore
+     */
+    static class ForgetRemote implements Externalizable {
+        UUID serialId
+        int  count
+
+        void writeExternal(ObjectOutput out) {
+            out.writeLong serialId.mostSignificantBits
+            out.writeLong serialId.leastSignificantBits
+            out.writeInt count
+        }
+
+        void readExternal(ObjectInput inp) {
+            serialId = new UUID(inp.readLong(), inp.readLong())
+            count = inp.readInt()
+        }
+    }
+
+    /**
+     * Renews leases of all channels used by the sending host
+     */
+    static class RenewLeases implements Externalizable {
+        UUID [] serialIds
+
+        void writeExternal(ObjectOutput out) {
+            out.writeInt serialIds.length
+            for (id in serialIds) {
+                out.writeLong id.mostSignificantBits
+                out.writeLong id.leastSignificantBits
+            }
+        }
+
+        void readExternal(ObjectInput inp) {
+            serialIds = new UUID[inp.readInt()]
+            for (int i = 0; i != serialIds.length; ++i)
+                serialIds[i] = new UUID(inp.readLong(), inp.readLong())
+        }
+    }
 }
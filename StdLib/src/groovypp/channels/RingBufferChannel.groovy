@@ -0,0 +1,429 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.Backoff
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Channel handing messages to consumer stages through pre-allocated ring of slots
+ *
+ * Posting claims next sequence (plain increment in single producer mode, one CAS otherwise), stores message
+ * to its slot and publishes it. Nothing is allocated per message. Each stage runs in a thread of its own,
+ * processes all available messages as one batch and waits for new ones using waitStrategy.
+ * Stage may depend on other stages, then it sees a message only after all of them processed it.
+ * Producers wait when the ring is full, until stages without dependents free the slots.
+ *
+ * If no stage was added, onMessage becomes the only stage.
+ *
+ * When only one stage has no dependents, it clears each slot after processing, so the ring does not keep processed
+ * messages reachable. With several such stages slots are not cleared and up to bufferSize processed messages stay
+ * reachable until producers overwrite them.
+ */
+@Typed class RingBufferChannel<M> extends MessageChannel<M> {
+    /**
+     * non volatile. should be set before start. rounded up to power of two
+     */
+    int bufferSize = 1024
+
+    /**
+     * non volatile. should be set before start. if true, only one thread may post messages
+     */
+    boolean singleProducer
+
+    /**
+     * non volatile. should be set before start
+     */
+    WaitStrategy waitStrategy = WaitStrategy.YIELD
+
+    /**
+     * non volatile. executor running stages, each of them occupies one thread until channel is stopped
+     */
+    Executor executor
+
+    private Object[] entries
+
+    private int mask
+
+    private int shift
+
+    /**
+     * Round of message published to each slot. Used in multi producer mode only
+     */
+    private AtomicIntegerArray published
+
+    /**
+     * Last published sequence in single producer mode or last claimed one otherwise
+     */
+    private final Sequence cursor = [-1L]
+
+    /**
+     * Last claimed sequence in single producer mode. Accessed by the producer only
+     */
+    private long claimedSingle = -1L
+
+    /**
+     * Minimal sequence of gating stages seen by producers last time
+     */
+    private final Sequence cachedGate = [-1L]
+
+    private final List<Stage<M>> stages = []
+
+    /**
+     * Stages without dependents. Producers never overwrite slot, which was not processed by all of them
+     */
+    private volatile Stage[] gating
+
+    private volatile boolean running
+
+    /**
+     * Called for each message by default stage
+     */
+    protected void onMessage(M message) {
+    }
+
+    /**
+     * Called when stage handler throws. Processing continues with next message
+     */
+    protected void onError(M message, Throwable cause) {
+        cause.printStackTrace()
+    }
+
+    /**
+     * Adds consumer stage. Handler is called on stage's thread for every message after all stages in after
+     */
+    synchronized Stage<M> addStage(List<Stage<M>> after = [], MessageChannel<M> handler) {
+        if (gating)
+            throw new IllegalStateException("Stages can not be added after start")
+        for (s in after)
+            if (s.ring !== this)
+                throw new IllegalArgumentException("Stage belongs to other channel")
+
+        Stage<M> stage = [this, handler, after.toArray(new Stage[after.size()])]
+        stages << stage
+        stage
+    }
+
+    /**
+     * Allocates slots and starts stages. Called by first post if not called before
+     */
+    synchronized void start() {
+        if (gating)
+            return
+        if (!executor)
+            throw new IllegalStateException("Executor is not set")
+
+        def size = 1
+        while (size < bufferSize)
+            size <<= 1
+        entries = new Object[size]
+        mask = size - 1
+        shift = Integer.numberOfTrailingZeros(size)
+        if (!singleProducer) {
+            published = [size]
+            for (i in 0..<size)
+                published.set(i, -1)
+        }
+
+        if (stages.empty) {
+            def that = this
+            addStage { msg -> that.onMessage(msg) }
+        }
+
+        List<Stage> leaves = []
+        for (s in stages) {
+            if (!stages.any { other -> other.dependsOn.any { it === s } })
+                leaves << s
+        }
+
+        running = true
+        gating = leaves.toArray(new Stage[leaves.size()])
+        for (s in stages)
+            executor.execute s
+    }
+
+    /**
+     * Stops stages after their current batch. Messages not processed yet are dropped
+     * and posting to stopped channel throws RejectedExecutionException
+     */
+    void stop() {
+        running = false
+    }
+
+    boolean isRunning() {
+        running
+    }
+
+    void post(M message) {
+        if (!gating)
+            start()
+        checkRunning()
+
+        if (singleProducer) {
+            def seq = claimSingle(1)
+            entries[(int)(seq & mask)] = message
+            cursor.set(seq)
+        }
+        else {
+            def seq = claimMulti(1)
+            entries[(int)(seq & mask)] = message
+            published.set((int)(seq & mask), (int)(seq >>> shift))
+        }
+    }
+
+    /**
+     * Posts messages in order, claiming and publishing up to bufferSize of them at once
+     */
+    void publish(Collection<M> messages) {
+        if (!gating)
+            start()
+        checkRunning()
+
+        def iter = messages.iterator()
+        def remaining = messages.size()
+        while (remaining) {
+            def n = Math.min(remaining, entries.length)
+            def hi = singleProducer ? claimSingle(n) : claimMulti(n)
+            def lo = hi - n + 1
+            for (def seq = lo; seq <= hi; ++seq)
+                entries[(int)(seq & mask)] = iter.next()
+
+            if (singleProducer) {
+                cursor.set(hi)
+            }
+            else {
+                for (def seq = lo; seq <= hi; ++seq)
+                    published.set((int)(seq & mask), (int)(seq >>> shift))
+            }
+            remaining -= n
+        }
+    }
+
+    private long claimSingle(int n) {
+        def hi = claimedSingle + n
+        awaitCapacity(hi)
+        claimedSingle = hi
+        hi
+    }
+
+    private long claimMulti(int n) {
+        for (;;) {
+            def current = cursor.get()
+            def hi = current + n
+            awaitCapacity(hi)
+            if (cursor.compareAndSet(current, hi))
+                return hi
+        }
+    }
+
+    /**
+     * Waits until slot of sequence hi is processed by all gating stages in previous round
+     */
+    private void awaitCapacity(long hi) {
+        def wrap = hi - entries.length
+        if (wrap <= cachedGate.get())
+            return
+
+        Backoff backoff = null
+        for (;;) {
+            def gate = minSequence(gating)
+            if (wrap <= gate) {
+                cachedGate.set(gate)
+                return
+            }
+            // stopped stages never free slots
+            checkRunning()
+            if (!backoff)
+                backoff = []
+            backoff.backoff()
+        }
+    }
+
+    private void checkRunning() {
+        if (!running)
+            throw new RejectedExecutionException("Channel is stopped")
+    }
+
+    /**
+     * Highest sequence published without gaps starting from next
+     */
+    private long highestPublished(long next) {
+        def hi = cursor.get()
+        if (singleProducer)
+            return hi
+
+        for (def seq = next; seq <= hi; ++seq)
+            if (published.get((int)(seq & mask)) != (int)(seq >>> shift))
+                return seq - 1
+        hi
+    }
+
+    private static long minSequence(Stage[] stages) {
+        def min = Long.MAX_VALUE
+        for (s in stages) {
+            def seq = s.sequence.get()
+            if (seq < min)
+                min = seq
+        }
+        min
+    }
+
+    /**
+     * Consumer of ring buffer's messages
+     */
+    static final class Stage<M> implements Runnable {
+        final RingBufferChannel<M> ring
+
+        final MessageChannel<M> handler
+
+        final Stage[] dependsOn
+
+        /**
+         * Last processed sequence
+         */
+        final Sequence sequence = [-1L]
+
+        Stage(RingBufferChannel<M> ring, MessageChannel<M> handler, Stage[] dependsOn) {
+            this.ring = ring
+            this.handler = handler
+            this.dependsOn = dependsOn
+        }
+
+        void run() {
+            def next = sequence.get() + 1
+            def wait = ring.waitStrategy
+            // slot may be cleared only by the stage, which alone lets producers reuse it
+            def clears = ring.gating.length == 1 && ring.gating[0] === this
+            def attempt = 0
+            while (ring.running) {
+                def available = dependsOn.length ? minSequence(dependsOn) : ring.highestPublished(next)
+                if (available < next) {
+                    wait.idle(attempt++)
+                    continue
+                }
+
+                attempt = 0
+                for (def seq = next; seq <= available; ++seq) {
+                    def index = (int)(seq & ring.mask)
+                    def message = (M)ring.entries[index]
+                    try {
+                        handler.post(message)
+                    }
+                    catch (Throwable t) {
+                        ring.onError(message, t)
+                    }
+                    if (clears)
+                        ring.entries[index] = null
+                }
+                sequence.set(available)
+                next = available + 1
+            }
+        }
+    }
+
+    /**
+     * Padding before value of Sequence
+     */
+    private static class LeftPadding {
+        protected long p1, p2, p3, p4, p5, p6, p7
+    }
+
+    private static class SequenceValue extends LeftPadding {
+        protected volatile long value
+    }
+
+    /**
+     * Sequence counter padded to occupy cache line of its own, so producers and stages updating
+     * neighbour counters do not invalidate each other's caches
+     */
+    static final class Sequence extends SequenceValue {
+        protected long p9, p10, p11, p12, p13, p14, p15
+
+        Sequence(long initial) {
+            value = initial
+        }
+
+        long get() {
+            value
+        }
+
+        void set(long v) {
+            value = v
+        }
+
+        boolean compareAndSet(long expected, long v) {
+            value.compareAndSet(expected, v)
+        }
+    }
+
+    /**
+     * Defines how stage waits for new messages
+     */
+    abstract static class WaitStrategy {
+        /**
+         * Lowest latency, but keeps a core busy all the time
+         */
+        static final WaitStrategy BUSY_SPIN = new BusySpin()
+
+        /**
+         * Spins shortly, then yields the core to other threads
+         */
+        static final WaitStrategy YIELD = new Yield()
+
+        /**
+         * Spins and yields shortly, then parks for 50 microseconds. Saves CPU, when messages are rare
+         */
+        static final WaitStrategy PARK = new Park(50000L)
+
+        /**
+         * Called each time stage found no new messages
+         *
+         * @param attempt number of such calls since last message
+         */
+        abstract void idle(int attempt)
+    }
+
+    private static final class BusySpin extends WaitStrategy {
+        void idle(int attempt) {
+        }
+    }
+
+    private static final class Yield extends WaitStrategy {
+        void idle(int attempt) {
+            if (attempt > 100)
+                Thread.yield()
+        }
+    }
+
+    static final class Park extends WaitStrategy {
+        final long parkNanos
+
+        Park(long parkNanos) {
+            this.parkNanos = parkNanos
+        }
+
+        void idle(int attempt) {
+            if (attempt > 200)
+                LockSupport.parkNanos(parkNanos)
+            else if (attempt > 100)
+                Thread.yield()
+        }
+    }
+}
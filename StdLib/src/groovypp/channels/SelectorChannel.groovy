@@ -25,7 +25,7 @@ package groovypp.channels
  */
 @Typed abstract class SelectorChannel<M> extends MessageChannel<M> {
 
-  final void post(M message) {
+  void post(M message) {
     for (c in selectInterested(message))
       c.post(message)
   }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import groovypp.concurrent.FHashMap
+import groovypp.concurrent.FList
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Channel routing messages to subscribers by hierarchical topic
+ *
+ * Topics are dot separated words like "quotes.nasdaq.msft". Subscription pattern may contain wildcards:
+ * '*' matches exactly one word and '#' matches zero or more words, so "quotes.*.msft" and "quotes.#"
+ * both match the topic above. Subscriber matched by several patterns receives message once.
+ *
+ * Subscriptions are kept in persistent trie of FHashMaps, which is replaced by compare-and-set on every change,
+ * so posting never locks. Resolved routes are cached per topic until next change of subscriptions,
+ * so in steady state message delivery costs one hash lookup plus one post per interested subscriber
+ * independently of total number of subscribers.
+ */
+@Typed abstract class TopicChannel<M> extends MessageChannel<M> {
+    /**
+     * Maximal number of topics, for which resolved routes are cached. Cache is cleared when exceeded
+     */
+    int maxCachedRoutes = 16384
+
+    private volatile Routing routing = new Routing(Node.EMPTY)
+
+    /**
+     * Maps message to its topic
+     */
+    abstract protected String messageTopic (M message)
+
+    final void post (M message) {
+        def targets = route(messageTopic(message))
+        for (int i = 0; i != targets.length; ++i)
+            targets[i].post(message)
+    }
+
+    /**
+     * @return channels subscribed to given topic
+     */
+    final List<MessageChannel> subscribers (String topic) {
+        Arrays.asList(route(topic))
+    }
+
+    TopicChannel<M> subscribe (String pattern, MessageChannel<M> channel) {
+        def words = split(pattern)
+        for (;;) {
+            def r = routing
+            if (routing.compareAndSet(r, new Routing(add(r.root, words, 0, channel))))
+                return this
+        }
+    }
+
+    TopicChannel<M> unsubscribe (String pattern, MessageChannel<M> channel) {
+        def words = split(pattern)
+        for (;;) {
+            def r = routing
+            def root = remove(r.root, words, 0, channel)
+            if (root === r.root || routing.compareAndSet(r, new Routing(root)))
+                return this
+        }
+    }
+
+    private MessageChannel[] route (String topic) {
+        def r = routing
+        def targets = r.routes.get(topic)
+        if (targets == null) {
+            LinkedHashSet<MessageChannel> found = []
+            collect(r.root, split(topic), 0, found)
+            targets = found.toArray(new MessageChannel[found.size()])
+
+            if (r.routes.size() >= maxCachedRoutes)
+                r.routes.clear()
+            r.routes.put(topic, targets)
+        }
+        targets
+    }
+
+    private static void collect (Node node, String[] words, int i, Set<MessageChannel> found) {
+        def any = node.children.get("#")
+        if (any) {
+            for (int j = i; j <= words.length; ++j)
+                collect(any, words, j, found)
+        }
+
+        if (i == words.length) {
+            for (s in node.subscribers)
+                found << s
+            return
+        }
+
+        def exact = node.children.get(words[i])
+        if (exact)
+            collect(exact, words, i + 1, found)
+
+        def one = node.children.get("*")
+        if (one)
+            collect(one, words, i + 1, found)
+    }
+
+    private static Node add (Node node, String[] words, int i, MessageChannel channel) {
+        if (i == words.length)
+            return new Node(node.subscribers + channel, node.children)
+
+        def child = node.children.get(words[i]) ?: Node.EMPTY
+        new Node(node.subscribers, node.children.put(words[i], add(child, words, i + 1, channel)))
+    }
+
+    private static Node remove (Node node, String[] words, int i, MessageChannel channel) {
+        if (i == words.length) {
+            def subscribers = node.subscribers - channel
+            return subscribers === node.subscribers ? node : new Node(subscribers, node.children)
+        }
+
+        def child = node.children.get(words[i])
+        if (!child)
+            return node
+
+        def updated = remove(child, words, i + 1, channel)
+        if (updated === child)
+            return node
+
+        new Node(node.subscribers, updated.empty ? node.children.remove(words[i]) : node.children.put(words[i], updated))
+    }
+
+    private static String[] split (String topic) {
+        topic.length() ? topic.split("\\.") : new String[0]
+    }
+
+    private static final class Node {
+        static final Node EMPTY = new Node(FList.emptyList, FHashMap.emptyMap)
+
+        final FList<MessageChannel> subscribers
+
+        final FHashMap<String, Node> children
+
+        Node (FList<MessageChannel> subscribers, FHashMap<String, Node> children) {
+            this.subscribers = subscribers
+            this.children = children
+        }
+
+        boolean isEmpty () {
+            subscribers.empty && children.empty
+        }
+    }
+
+    /**
+     * Subscription trie together with routes resolved against it
+     */
+    private static final class Routing {
+        final Node root
+
+        final ConcurrentHashMap<String, MessageChannel[]> routes = []
+
+        Routing (Node root) {
+            this.root = root
+        }
+    }
+}
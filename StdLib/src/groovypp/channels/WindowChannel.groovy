@@ -0,0 +1,270 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Message channel, which aggregates incoming messages by windows and forwards aggregate of each window
+ *
+ * Window consists of panes. Pane is closed after paneCount messages or, if paneMillis is set, by shared channels timer
+ * every paneMillis. Every time pane is closed, aggregate of last windowPanes panes is forwarded, so windowPanes == 1 gives
+ * tumbling window and bigger values give sliding one. Messages are added to aggregate of their pane as they come,
+ * so only one aggregate per pane is kept. Empty windows are not forwarded.
+ *
+ * Aggregates are forwarded while channel's lock is held, so windows arrive in order. Channel forwarded to
+ * should not block, for example it can be asynchronous one. Panes closed by time are forwarded
+ * on the thread of shared channels timer, so blocking there delays all timed actions of channels.
+ * Timer of time based window runs only while the window has messages, so idle window is not referenced by the timer.
+ * {@link #close} stops it for good.
+ */
+@Typed abstract class WindowChannel<M,A> extends ForwardingChannel<M,A> {
+    /**
+     * non volatile. should be set before first message posted
+     */
+    int paneCount
+
+    /**
+     * non volatile. should be set before first message posted
+     */
+    long paneMillis
+
+    /**
+     * non volatile. should be set before first message posted
+     */
+    int windowPanes = 1
+
+    private A current
+
+    private int currentCount
+
+    /**
+     * Aggregates of closed panes of current window, oldest first starting from historyStart
+     */
+    private Object[] history
+
+    private int historyStart
+
+    /**
+     * Timer task of time based window. Accessed under channel's lock
+     */
+    private TimerTask ticker
+
+    private boolean closed
+
+    /**
+     * Adds message to aggregate of the pane
+     *
+     * @param aggregate null for first message of the pane
+     */
+    abstract protected A add(A aggregate, M message)
+
+    /**
+     * Combines aggregates of two panes, older one first. Needed for sliding windows only.
+     * Should not modify its arguments, because every pane takes part in several windows
+     */
+    protected A merge(A older, A newer) {
+        throw new UnsupportedOperationException("Sliding window needs merge")
+    }
+
+    /**
+     * Copies aggregate of the pane, which is forwarded as the whole sliding window, because the pane is kept
+     * for next windows too. Default implementation returns the aggregate itself, which is fine for immutable ones
+     */
+    protected A copy(A aggregate) {
+        aggregate
+    }
+
+    void post(M message) {
+        synchronized (this) {
+            current = add(current, message)
+            if (paneCount && ++currentCount == paneCount)
+                closePane()
+            if (paneMillis && !ticker && !closed)
+                startTicker()
+        }
+    }
+
+    /**
+     * Closes current pane immediately
+     */
+    synchronized void flush() {
+        closePane()
+    }
+
+    /**
+     * Stops timer of time based window. Messages of current pane are not forwarded
+     */
+    synchronized void close() {
+        closed = true
+        ticker?.cancel()
+        ticker = null
+    }
+
+    String toString () {
+        "window[$forwardTo]"
+    }
+
+    private void startTicker() {
+        TimerTask task = { tick() }
+        ticker = task
+        ExecutingChannel.globalChannelsTimer.scheduleAtFixedRate(task, paneMillis, paneMillis)
+    }
+
+    private synchronized void tick() {
+        // window is empty and no pane is kept for next windows, so next message starts the timer again
+        if (!closePane()) {
+            ticker?.cancel()
+            ticker = null
+        }
+    }
+
+    /**
+     * @return false if window was empty, so nothing was forwarded
+     */
+    private boolean closePane() {
+        def pane = current
+        current = null
+        currentCount = 0
+
+        def window = pane
+        if (windowPanes > 1) {
+            if (!history)
+                history = new Object[windowPanes - 1]
+
+            window = null
+            for (i in 0..<history.length)
+                window = combine(window, (A)history[(historyStart + i) % history.length])
+            window = combine(window, pane)
+            // the pane goes to history, so receiver should not get the same instance
+            if (window === pane && pane != null)
+                window = copy(pane)
+
+            history[historyStart] = pane
+            historyStart = (historyStart + 1) % history.length
+        }
+
+        if (window == null)
+            return false
+
+        forwardTo?.post(window)
+        true
+    }
+
+    private A combine(A older, A newer) {
+        older == null ? newer : newer == null ? older : merge(older, newer)
+    }
+
+    /**
+     * Creates window with panes of given number of messages
+     */
+    static <M,A> WindowChannel<M,A> byCount(int count, int step, WindowChannel<M,A> window) {
+        if (count <= 0 || step <= 0 || count % step)
+            throw new IllegalArgumentException("Window size should be positive multiple of step")
+        window.paneCount = step
+        window.windowPanes = (int)(count / step)
+        window
+    }
+
+    /**
+     * Creates window with panes closed by timer
+     */
+    static <M,A> WindowChannel<M,A> byTime(long duration, long slide, TimeUnit unit, WindowChannel<M,A> window) {
+        def durationMillis = unit.toMillis(duration), slideMillis = unit.toMillis(slide)
+        if (durationMillis <= 0 || slideMillis <= 0 || durationMillis % slideMillis)
+            throw new IllegalArgumentException("Window duration should be positive multiple of slide")
+        window.paneMillis = slideMillis
+        window.windowPanes = (int)(durationMillis / slideMillis)
+        window
+    }
+
+    /**
+     * Window reducing messages by associative function
+     */
+    static class Reducing<T> extends WindowChannel<T,T> {
+        final Function2<T,T,T> reducer
+
+        Reducing(Function2<T,T,T> reducer) {
+            this.reducer = reducer
+        }
+
+        protected T add(T aggregate, T message) {
+            aggregate == null ? message : reducer.call(aggregate, message)
+        }
+
+        protected T merge(T older, T newer) {
+            reducer.call(older, newer)
+        }
+    }
+
+    /**
+     * Window forwarding list of its messages
+     */
+    static class Collecting<T> extends WindowChannel<T,List<T>> {
+        protected List<T> add(List<T> aggregate, T message) {
+            def res = aggregate != null ? aggregate : new ArrayList<T>()
+            res.add(message)
+            res
+        }
+
+        protected List<T> merge(List<T> older, List<T> newer) {
+            List<T> res = new ArrayList<T>(older.size() + newer.size())
+            res.addAll(older)
+            res.addAll(newer)
+            res
+        }
+
+        protected List<T> copy(List<T> aggregate) {
+            new ArrayList<T>(aggregate)
+        }
+    }
+
+    /**
+     * Window forwarding map from key to messages of the key reduced by associative function
+     */
+    static class ReducingByKey<K,T> extends WindowChannel<T,Map<K,T>> {
+        final Function1<T,K> key
+
+        final Function2<T,T,T> reducer
+
+        ReducingByKey(Function1<T,K> key, Function2<T,T,T> reducer) {
+            this.key = key
+            this.reducer = reducer
+        }
+
+        protected Map<K,T> add(Map<K,T> aggregate, T message) {
+            def res = aggregate != null ? aggregate : new HashMap<K,T>()
+            def k = key.call(message)
+            def prev = res.get(k)
+            res.put(k, prev == null ? message : reducer.call(prev, message))
+            res
+        }
+
+        protected Map<K,T> merge(Map<K,T> older, Map<K,T> newer) {
+            Map<K,T> res = new HashMap<K,T>(older)
+            for (e in newer.entrySet()) {
+                def prev = res.get(e.key)
+                res.put(e.key, prev == null ? e.value : reducer.call(prev, e.value))
+            }
+            res
+        }
+
+        protected Map<K,T> copy(Map<K,T> aggregate) {
+            new HashMap<K,T>(aggregate)
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Fixed thread pool keeping each task on the same worker thread
+ *
+ * Intended for channels (like the one returned by MessageChannel.async), which submit themselves again and again:
+ * every task has home worker chosen by its identity, and task resubmitted by itself while running goes to the next task
+ * slot of the worker running it. So a busy channel stays on one core with warm caches and workers do not contend
+ * on a shared queue.
+ *
+ * Idle worker steals from other workers in two cases. When worker's queue holds at least stealThreshold tasks,
+ * it takes from the queue at once. When worker runs the same task for stealDelay or longer, it also takes tasks
+ * waiting behind that one, including the one in next task slot, so no task waits forever behind blocked one.
+ * Stolen channel keeps running on the thief while it stays busy and returns to its home worker after it becomes idle.
+ */
+@Typed class AffinityExecutor implements Executor {
+    private static final ThreadLocal<Worker> currentWorker = []
+
+    private final Worker[] workers
+
+    /**
+     * Minimal length of other worker's queue to steal from at once
+     */
+    final int stealThreshold
+
+    /**
+     * Time in nanoseconds, after which tasks waiting behind running one may be stolen
+     */
+    final long stealDelay
+
+    /**
+     * Number of idle workers waiting for tasks of other workers to become stealable
+     */
+    private volatile int watching
+
+    private volatile boolean stopped
+
+    private final CountDownLatch termination
+
+    AffinityExecutor(int num = Runtime.getRuntime().availableProcessors(), int stealThreshold = 2, long stealDelayMillis = 10, ThreadFactory threadFactory = Executors.defaultThreadFactory()) {
+        if (num <= 0 || stealThreshold <= 0 || stealDelayMillis <= 0)
+            throw new IllegalArgumentException()
+
+        this.stealThreshold = stealThreshold
+        this.stealDelay = TimeUnit.MILLISECONDS.toNanos(stealDelayMillis)
+        termination = [num]
+        workers = new Worker[num]
+        for (i in 0..<num)
+            workers[i] = new Worker(this, i)
+        for (w in workers) {
+            w.thread = threadFactory.newThread(w)
+            w.thread.start()
+        }
+    }
+
+    void execute(Runnable command) {
+        if (stopped)
+            throw new RejectedExecutionException()
+
+        def current = currentWorker.get()
+        if (current && current.executor === this && current.running === command && current.next.compareAndSet(null, command)) {
+            // not stealable until it waits for stealDelay, so nobody is woken up
+            watch()
+            return
+        }
+
+        def target = workers[(System.identityHashCode(command) & 0x7fffffff) % workers.length]
+        target.push(command)
+        if (target.size >= stealThreshold)
+            wakeIdle(target)
+        else if (target.runningSince)
+            watch()
+    }
+
+    /**
+     * Number of tasks waiting in the queue of each worker
+     */
+    int[] getQueueSizes() {
+        int[] res = new int[workers.length]
+        for (i in 0..<workers.length)
+            res[i] = workers[i].size
+        res
+    }
+
+    /**
+     * Number of tasks each worker took from queues of other workers
+     */
+    long[] getStealCounts() {
+        long[] res = new long[workers.length]
+        for (i in 0..<workers.length)
+            res[i] = workers[i].steals
+        res
+    }
+
+    /**
+     * Initiate process of shutdown
+     * No new tasks can be scheduled after that point, already scheduled tasks will be executed
+     */
+    void shutdown() {
+        stopped = true
+        for (w in workers)
+            LockSupport.unpark(w.thread)
+    }
+
+    /**
+     * Initiate process of shutdown
+     * No new tasks can be scheduled after that point and all tasks, which not started execution yet, will be unscheduled
+     */
+    List<Runnable> shutdownNow() {
+        stopped = true
+        List<Runnable> res = []
+        for (w in workers) {
+            for (def task = w.poll() ?: w.takeNext(); task; task = w.poll() ?: w.takeNext())
+                res << task
+            LockSupport.unpark(w.thread)
+        }
+        res
+    }
+
+    boolean awaitTermination(long timeout, TimeUnit timeUnit) {
+        termination.await(timeout, timeUnit)
+    }
+
+    /**
+     * Makes sure some idle worker will check task waiting behind running one after stealDelay
+     */
+    private void watch() {
+        if (!watching)
+            wakeIdle(null)
+    }
+
+    private void wakeIdle(Worker busy) {
+        for (w in workers) {
+            if (w !== busy && w.parked) {
+                LockSupport.unpark(w.thread)
+                return
+            }
+        }
+    }
+
+    private Runnable steal(Worker thief) {
+        Worker victim = null
+        for (w in workers) {
+            if (w !== thief && w.size >= stealThreshold && (!victim || w.size > victim.size))
+                victim = w
+        }
+
+        def task = victim?.poll()
+        if (!task) {
+            def now = System.nanoTime()
+            for (w in workers) {
+                if (w !== thief && w.isStalled(now)) {
+                    task = w.poll() ?: w.takeNext()
+                    if (task)
+                        break
+                }
+            }
+        }
+
+        if (task)
+            thief.steals++
+        task
+    }
+
+    /**
+     * @return nanoseconds until some task waiting behind running one becomes stealable or 0 if there is no such task
+     */
+    private long untilStealable(Worker thief) {
+        long res = 0
+        def now = System.nanoTime()
+        for (w in workers) {
+            def since = w.runningSince
+            if (w !== thief && since && w.hasWaiting()) {
+                def left = Math.max(since + stealDelay - now, 1L)
+                if (!res || left < res)
+                    res = left
+            }
+        }
+        res
+    }
+
+    private static final class Worker implements Runnable {
+        final AffinityExecutor executor
+
+        final int index
+
+        Thread thread
+
+        private final ConcurrentLinkedQueue<Runnable> queue = []
+
+        volatile int size
+
+        /**
+         * Task resubmitted by itself while running on this worker
+         */
+        volatile Runnable next
+
+        volatile boolean parked
+
+        /**
+         * Task being executed. Accessed by the worker thread only
+         */
+        Runnable running
+
+        /**
+         * System.nanoTime() when running task started or 0 if worker does not run a task
+         */
+        volatile long runningSince
+
+        volatile long steals
+
+        Worker(AffinityExecutor executor, int index) {
+            this.executor = executor
+            this.index = index
+        }
+
+        void push(Runnable task) {
+            queue.offer(task)
+            size.incrementAndGet()
+            if (parked)
+                LockSupport.unpark(thread)
+        }
+
+        Runnable poll() {
+            def task = queue.poll()
+            if (task)
+                size.decrementAndGet()
+            task
+        }
+
+        Runnable takeNext() {
+            def task = next
+            task && next.compareAndSet(task, null) ? task : null
+        }
+
+        boolean hasWaiting() {
+            size || next
+        }
+
+        boolean isStalled(long now) {
+            def since = runningSince
+            since && now - since >= executor.stealDelay && hasWaiting()
+        }
+
+        void run() {
+            currentWorker.set(this)
+            CallLaterExecutors.taskExecutor.set(executor)
+            try {
+                for (;;) {
+                    // resubmitted task goes after tasks already queued, so it can not starve them
+                    def task = poll() ?: takeNext() ?: executor.steal(this)
+                    if (task) {
+                        runTask(task)
+                        continue
+                    }
+
+                    if (executor.stopped)
+                        return
+
+                    parked = true
+                    // check again: producer could miss parked flag
+                    task = poll() ?: takeNext() ?: executor.steal(this)
+                    if (task) {
+                        parked = false
+                        runTask(task)
+                        continue
+                    }
+                    if (!executor.stopped)
+                        park()
+                    parked = false
+                }
+            }
+            finally {
+                currentWorker.remove()
+                CallLaterExecutors.taskExecutor.remove()
+                executor.termination.countDown()
+            }
+        }
+
+        private void park() {
+            executor.watching.incrementAndGet()
+            def wait = executor.untilStealable(this)
+            if (!wait) {
+                // stop watching before checking again: submitter either sees no watchers or we see its task
+                executor.watching.decrementAndGet()
+                wait = executor.untilStealable(this)
+                if (!wait) {
+                    LockSupport.park(this)
+                    return
+                }
+                executor.watching.incrementAndGet()
+            }
+            LockSupport.parkNanos(this, wait)
+            executor.watching.decrementAndGet()
+        }
+
+        private void runTask(Runnable task) {
+            running = task
+            runningSince = System.nanoTime() | 1L
+            if (hasWaiting())
+                executor.watch()
+            def tracer = Tracer.active(Tracer.TASKS)
+            def span = tracer?.begin(Tracer.TASKS)
+            def start = tracer ? System.nanoTime() : 0L
+            try {
+                task.run()
+            }
+            catch (Throwable t) {
+                thread.uncaughtExceptionHandler?.uncaughtException(thread, t)
+            }
+            finally {
+                running = null
+                runningSince = 0L
+                tracer?.taskExecuted(span, executor, task, System.nanoTime() - start)
+            }
+        }
+    }
+}
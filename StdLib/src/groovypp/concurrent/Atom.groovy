@@ -41,6 +41,26 @@ package groovypp.concurrent
     }
   }
 
+  /**
+   * Same as call(mutation) but backs off exponentially after each failed attempt
+   */
+  final T callWithBackoff(Function1<T,T> mutation) {
+    Backoff backoff = null
+    for(;;) {
+      def oldValue = value
+      def newValue = mutation(oldValue)
+      validate(newValue)
+      if(value.compareAndSet(oldValue, newValue)) {
+        notifyListeners(oldValue, newValue)
+        return newValue
+      }
+
+      if(backoff == null)
+        backoff = []
+      backoff.backoff()
+    }
+  }
+
   final boolean compareAndSet(Object oldValue, Object newValue){
     validate(newValue)
     if(value.compareAndSet(oldValue, newValue)) {
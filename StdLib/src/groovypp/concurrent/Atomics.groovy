@@ -23,47 +23,67 @@ import java.util.concurrent.atomic.*
  */
 @Typed class Atomics {
     static <S> S apply (AtomicReference<S> self, Function1<S,S> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get()
             def newState = mutation(s)
-            if (self.compareAndSet(s, newState))
+            if (self.compareAndSet(s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static <T,S> S apply (AtomicReferenceFieldUpdater<T,S> self, T obj, Function1<S,S> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get(obj)
             def newState = mutation(s)
-            if (self.compareAndSet(obj, s, newState))
+            if (self.compareAndSet(obj, s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static <S> S apply (AtomicReferenceArray<S> self, int index, Function1<S,S> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get(index)
             def newState = mutation(s)
-            if (self.compareAndSet(index, s, newState))
+            if (self.compareAndSet(index, s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static <S,R> R apply (AtomicReference<S> self, Function1<S,R> mutator, Function1<R,S> extractor) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def oldState = self.get()
             def mutated = mutator(oldState)
-            if (self.compareAndSet(oldState, extractor(mutated)))
+            if (self.compareAndSet(oldState, extractor(mutated))) {
+                retries?.report(self)
                 return mutated
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static int apply (AtomicInteger self, Function1<Integer,Integer> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get()
             def newState = mutation(s)
-            if (self.compareAndSet(s, newState))
+            if (self.compareAndSet(s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
@@ -71,56 +91,129 @@ import java.util.concurrent.atomic.*
     static int dec(AtomicInteger self) { apply(self, {it - 1}) }
 
     static <T> int apply (AtomicIntegerFieldUpdater<T> self, T obj, Function1<Integer,Integer> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get(obj)
             def newState = mutation(s)
-            if (self.compareAndSet(obj, s, newState))
+            if (self.compareAndSet(obj, s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static int apply (AtomicIntegerArray self, int index, Function1<Integer,Integer> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get(index)
             def newState = mutation(s)
-            if (self.compareAndSet(index, s, newState))
+            if (self.compareAndSet(index, s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static long apply (AtomicLong self, Function1<Long,Long> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get()
             def newState = mutation(s)
-            if (self.compareAndSet(s, newState))
+            if (self.compareAndSet(s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static <T> long apply (AtomicLongFieldUpdater self, T obj, Function1<Long,Long> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get(obj)
             def newState = mutation(s)
-            if (self.compareAndSet(obj, s, newState))
+            if (self.compareAndSet(obj, s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static long apply (AtomicLongArray self, int index, Function1<Long,Long> mutation) {
+        Tracer.CasRetries retries = null
         for (;;) {
             def s = self.get(index)
             def newState = mutation(s)
-            if (self.compareAndSet(index, s, newState))
+            if (self.compareAndSet(index, s, newState)) {
+                retries?.report(self)
                 return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
         }
     }
 
     static boolean apply (AtomicBoolean self, Function1<Boolean,Boolean> mutation) {
+        Tracer.CasRetries retries = null
+        for (;;) {
+            def s = self.get()
+            def newState = mutation(s)
+            if (self.compareAndSet(s, newState)) {
+                retries?.report(self)
+                return newState
+            }
+            retries = Tracer.CasRetries.failed(retries)
+        }
+    }
+
+    /**
+     * Contention adaptive version of apply
+     *
+     * Backs off exponentially after each failed compareAndSet, so under heavy write contention threads
+     * don't burn CPU recalculating mutations, which are going to fail anyway.
+     * For registries updated by many writers at once see also {@link CombiningAtom}
+     */
+    static <S> S applyWithBackoff (AtomicReference<S> self, Function1<S,S> mutation) {
+        Backoff backoff = null
         for (;;) {
             def s = self.get()
             def newState = mutation(s)
             if (self.compareAndSet(s, newState))
                 return newState
+
+            if (backoff == null)
+                backoff = []
+            backoff.backoff()
+        }
+    }
+
+    static <T,S> S applyWithBackoff (AtomicReferenceFieldUpdater<T,S> self, T obj, Function1<S,S> mutation) {
+        Backoff backoff = null
+        for (;;) {
+            def s = self.get(obj)
+            def newState = mutation(s)
+            if (self.compareAndSet(obj, s, newState))
+                return newState
+
+            if (backoff == null)
+                backoff = []
+            backoff.backoff()
+        }
+    }
+
+    static <S> S applyWithBackoff (AtomicReferenceArray<S> self, int index, Function1<S,S> mutation) {
+        Backoff backoff = null
+        for (;;) {
+            def s = self.get(index)
+            def newState = mutation(s)
+            if (self.compareAndSet(index, s, newState))
+                return newState
+
+            if (backoff == null)
+                backoff = []
+            backoff.backoff()
         }
     }
 
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Exponential backoff for contended compare-and-set loops
+ *
+ * First failures are handled by short busy spins, then the thread yields and finally parks
+ * for exponentially growing (but limited) time.
+ *
+ * Instances are not thread safe and supposed to be created lazily by a retry loop after its first failed attempt
+ */
+@Typed final class Backoff {
+    private static final int SPIN_LIMIT  = Runtime.runtime.availableProcessors() > 1 ? 6 : 0
+    private static final int YIELD_LIMIT = SPIN_LIMIT + 2
+
+    static final long MIN_PARK_NANOS = 1000L
+    static final long MAX_PARK_NANOS = 1000000L
+
+    private final long maxParkNanos
+
+    private int  attempt
+    private long parkNanos = MIN_PARK_NANOS
+
+    /**
+     * keeps JIT from eliminating spin loop
+     */
+    private int spinSink
+
+    Backoff (long maxParkNanos = MAX_PARK_NANOS) {
+        this.maxParkNanos = maxParkNanos
+    }
+
+    /**
+     * Number of times backoff was called so far
+     */
+    int getAttempts () { attempt }
+
+    void backoff () {
+        def a = attempt++
+        if (a < SPIN_LIMIT) {
+            def sink = spinSink
+            for (int i = 1 << (a + 4); i > 0; --i)
+                sink += i
+            spinSink = sink
+        }
+        else {
+            if (a < YIELD_LIMIT) {
+                Thread.yield()
+            }
+            else {
+                LockSupport.parkNanos(parkNanos)
+                if (parkNanos < maxParkNanos)
+                    parkNanos = Math.min(parkNanos << 1, maxParkNanos)
+            }
+        }
+    }
+}
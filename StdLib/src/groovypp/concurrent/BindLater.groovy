@@ -37,6 +37,11 @@ import java.util.concurrent.*
 
     private volatile FList boundListeners = FList.emptyList
 
+    /**
+     * Creation time, recorded only if tracing was on when the future was created
+     */
+    private final long createdAt = Tracer.active(Tracer.FUTURES) ? System.nanoTime() : 0L
+
     final boolean isRunning() {
         getState() & S_RUNNING
     }
@@ -73,6 +78,7 @@ import java.util.concurrent.*
                         r.interrupt()
                 }
                 releaseShared(S_CANCELLED)
+                traceCompletion(Tracer.CANCELLED)
                 done()
                 return true
             }
@@ -191,6 +197,7 @@ import java.util.concurrent.*
             if (compareAndSetState(s, S_SET|S_RUNNING)) {
                 internalData = v
                 releaseShared(S_SET)
+                traceCompletion(Tracer.COMPLETED)
                 done()
                 return true
             }
@@ -206,12 +213,18 @@ import java.util.concurrent.*
                 def internal = internalData
                 internalData = t
                 releaseShared(S_EXCEPTION)
+                traceCompletion(Tracer.FAILED)
                 done()
                 return true
             }
         }
     }
 
+    private void traceCompletion(int outcome) {
+        if (createdAt)
+            Tracer.active(Tracer.FUTURES)?.futureCompleted(this, outcome, System.nanoTime() - createdAt)
+    }
+
     protected final int tryAcquireShared(int ignore) {
         isDone() ? 1 : -1
     }
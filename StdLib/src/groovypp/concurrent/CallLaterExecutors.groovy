@@ -39,6 +39,39 @@ class CallLaterExecutors {
         new CallLaterPool(0, Integer.MAX_VALUE, 1L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>())
     }
 
+    /**
+     * Creates executor running each task in new virtual thread.
+     * Falls back to cached thread pool if JVM does not support virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        VirtualThreadExecutor.supported ? new VirtualThreadExecutor() : newCachedThreadPool()
+    }
+
+    /**
+     * Creates fixed pool keeping each channel on the same worker thread while it stays busy
+     */
+    static AffinityExecutor newAffinityExecutor(int nThreads = Runtime.getRuntime().availableProcessors()) {
+        new AffinityExecutor(nThreads)
+    }
+
+    /**
+     * Timer shared by channels and other concurrency utilities for delayed actions. Tasks should be short and never block
+     */
+    static final Timer globalTimer = []
+
+    /**
+     * Executor of the task running in current thread for threads, which are not GroovyThreads (like virtual ones)
+     */
+    static final ThreadLocal<Executor> taskExecutor = []
+
+    /**
+     * @return executor current thread belongs to or null
+     */
+    static Executor getCurrentExecutor() {
+        def thread = Thread.currentThread()
+        thread instanceof GroovyThread ? ((GroovyThread)thread).pool : taskExecutor.get()
+    }
+
     static <T> BindLater<T> callLater (Executor executor, CallLater<T> future) {
         executor.execute future
         future
@@ -82,9 +115,8 @@ class CallLaterExecutors {
     }
 
     static <T> BindLater.Listener<T> async(BindLater.Listener<T> listener) {
-        def thread = Thread.currentThread()
-        if(thread instanceof GroovyThread) {
-            def pool = ((GroovyThread)thread).pool
+        def pool = currentExecutor
+        if(pool) {
             return { bl ->
                 pool.execute {
                     listener.onBound(bl)
@@ -26,9 +26,65 @@ class CallLaterPool extends ThreadPoolExecutor {
         ((DefaultThreadFactory)getThreadFactory()).pool = this
     }
 
+    /**
+     * If set, time in queue and execution time of each task are recorded
+     */
+    volatile ExecutionMetrics metrics
+
+    void execute(Runnable command) {
+        def recorder = metrics
+        if (!recorder) {
+            super.execute(command)
+            return
+        }
+
+        try {
+            super.execute(recorder.stamp(command))
+        }
+        catch (RejectedExecutionException e) {
+            recorder.rejected()
+            throw e
+        }
+    }
+
+    protected void beforeExecute(Thread t, Runnable r) {
+        def tracer = Tracer.active(Tracer.TASKS)
+        if (tracer && t instanceof GroovyThread) {
+            def groovyThread = (GroovyThread)t
+            groovyThread.taskTracer = tracer
+            groovyThread.taskSpan = tracer.begin(Tracer.TASKS)
+            groovyThread.taskStartedAt = System.nanoTime()
+        }
+    }
+
+    protected void afterExecute(Runnable r, Throwable t) {
+        def thread = Thread.currentThread()
+        if (thread instanceof GroovyThread) {
+            def groovyThread = (GroovyThread)thread
+            def tracer = groovyThread.taskTracer
+            if (tracer) {
+                tracer.taskExecuted(groovyThread.taskSpan, this, r instanceof ExecutionMetrics.Stamped ? ((ExecutionMetrics.Stamped)r).task : r, System.nanoTime() - groovyThread.taskStartedAt)
+                groovyThread.taskTracer = null
+                groovyThread.taskSpan = null
+                groovyThread.taskStartedAt = 0L
+            }
+        }
+    }
+
     protected static class GroovyThread extends Thread {
        final ExecutorService pool
 
+       /**
+        * Start of current task, set only while tracing is on
+        */
+       long taskStartedAt
+
+       /**
+        * Tracer and span of current task, set only while tracing is on
+        */
+       Tracer taskTracer
+       Object taskSpan
+
        GroovyThread (ExecutorService pool, ThreadGroup group, Runnable r, String name) {
            super(group, r, name, 0)
            this.@pool = pool
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovypp.concurrent
+
+/**
+ * Atomic reference, which applies mutations by flat combining
+ *
+ * Instead of retrying compareAndSet each thread publishes its mutation and one of the threads (combiner)
+ * applies whole batch of published mutations at once. Under heavy write contention no mutation is
+ * calculated more than once and referenced value is written by one thread at a time.
+ *
+ * Mutations are applied in order of publication. Mutation, which throws or produces invalid value, is skipped
+ * and the exception is rethrown in the thread, which published it.
+ *
+ * @param < T > type of referenced data
+ */
+@Typed class CombiningAtom<T> extends AbstractRef<T> {
+  private volatile T value
+
+  /**
+   * Stack of published but not applied yet mutations
+   */
+  private volatile Request<T> published
+
+  private volatile int combining
+
+  private static final long MAX_WAIT_NANOS = 50000L
+
+  /**
+   * Combiner leaves after that many batches, so it is not trapped by endless stream of mutations
+   */
+  private static final int MAX_COMBINE_PASSES = 4
+
+  CombiningAtom (T value = null) {
+    this.value = value
+  }
+
+  private static final class Request<T> {
+    final Function1<T,T> mutation
+
+    Request<T> next
+    T          result
+    Throwable  error
+
+    volatile boolean done
+
+    Request(Function1<T,T> mutation) {
+      this.mutation = mutation
+    }
+  }
+
+  final T get() { value }
+
+  final T call(Function1<T,T> mutation) {
+    Request<T> request = [mutation]
+    for(;;) {
+      def p = published
+      request.next = p
+      if(published.compareAndSet(p, request))
+        break
+    }
+
+    Backoff backoff = null
+    for(;;) {
+      if(request.done)
+        break
+
+      if(!combining && combining.compareAndSet(0, 1)) {
+        try {
+          combine()
+        }
+        finally {
+          combining = 0
+        }
+        // our request was published before we became combiner, so it is done now
+        break
+      }
+
+      if(backoff == null)
+        backoff = [MAX_WAIT_NANOS]
+      backoff.backoff()
+    }
+
+    if(request.error)
+      throw request.error
+    request.result
+  }
+
+  final void set(T newValue) {
+    call { newValue }
+  }
+
+  private void combine() {
+    for(int pass = 0; pass < MAX_COMBINE_PASSES; ) {
+      def batch = published
+      if(batch == null)
+        return
+
+      if(!published.compareAndSet(batch, null))
+        continue
+
+      pass++
+
+      // restore order of publication
+      Request<T> ordered = null
+      while(batch) {
+        def next = batch.next
+        batch.next = ordered
+        ordered = batch
+        batch = next
+      }
+
+      while(ordered) {
+        def request = ordered
+        ordered = request.next
+        request.next = null
+
+        def oldValue = value
+        try {
+          def newValue = request.mutation(oldValue)
+          validate(newValue)
+          value = newValue
+          request.result = newValue
+          notifyListeners(oldValue, newValue)
+        }
+        catch(Throwable t) {
+          request.error = t
+        }
+        request.done = true
+      }
+    }
+  }
+}
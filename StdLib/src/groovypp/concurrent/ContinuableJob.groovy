@@ -16,16 +16,65 @@
 package groovypp.concurrent
 
 import java.util.concurrent.Executor
-
 import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
+/**
+ * Job, which may spawn sub jobs while running
+ *
+ * Job completes when its own body and all sub jobs are completed. How results of sub jobs affect the job
+ * is defined by scope: with ALL_MUST_SUCCEED (default) failure of any sub job fails the job, with FIRST_SUCCESS
+ * the job completes with result of first successful sub job.
+ * When job completes all its sub jobs, which are still running, are cancelled.
+ *
+ * Cancellation is cooperative: threads are never interrupted, long running jobs are supposed to call checkCancelled()
+ * from time to time.
+ */
 @Typed abstract class ContinuableJob<V> extends BindLater<V> implements Runnable, Callable<V> {
 
+  /**
+   * Failure of any sub job fails the job and cancels other sub jobs
+   */
+  static final int ALL_MUST_SUCCEED = 0
+
+  /**
+   * The job completes with result of first successful sub job and cancels other sub jobs.
+   * It fails only if all sub jobs failed
+   */
+  static final int FIRST_SUCCESS = 1
+
+  /**
+   * non volatile. should be set before the job started
+   */
+  int scope = ALL_MUST_SUCCEED
+
   private Executor          executor
   private ContinuableJob    owner
 
+  /**
+   * Sub jobs, which are not completed yet
+   */
   private volatile FList<ContinuableJob> subJobs = FList.emptyList
 
+  /**
+   * Number of incomplete sub jobs plus one for the job body itself
+   */
+  private volatile int pending = 1
+
+  private V result
+
+  private volatile Throwable lastSubJobFailure
+
+  /**
+   * System.nanoTime() based deadline or 0 if there is no deadline
+   */
+  private long deadline
+
+  private volatile TimerTask deadlineTask
+
   private static ThreadLocal<ContinuableJob> currentJob = []
 
   static <S> ContinuableJob<S> job(Executor executor, ContinuableJob<S> job) {
@@ -38,6 +87,7 @@ import java.util.concurrent.Callable
         throw new IllegalStateException("Executor is already set for ContinuableJob")
       job.executor = executor
 
+      job.armDeadline()
       executor.execute job
       job
     }
@@ -49,6 +99,48 @@ import java.util.concurrent.Callable
     result
   }
 
+  /**
+   * @return job running in current thread or null
+   */
+  static ContinuableJob getCurrent() {
+    currentJob.get()
+  }
+
+  /**
+   * Sets deadline for the job, which fails with TimeoutException if not completed in time.
+   * Sub jobs inherit deadline of the job unless they have earlier one
+   */
+  final ContinuableJob<V> withTimeout(long timeout, TimeUnit unit) {
+    if(executor)
+      throw new IllegalStateException("Deadline should be set before job is started")
+    deadline = System.nanoTime() + unit.toNanos(timeout)
+    this
+  }
+
+  /**
+   * @return nanoseconds left before the deadline or Long.MAX_VALUE if the job has no deadline
+   */
+  final long getRemainingNanos() {
+    deadline ? deadline - System.nanoTime() : Long.MAX_VALUE
+  }
+
+  /**
+   * @return true if job is completed (for example, because other sub job of the same owner failed) or its deadline passed
+   */
+  final boolean isCancellationRequested() {
+    isDone() || (deadline && System.nanoTime() - deadline >= 0)
+  }
+
+  /**
+   * Cooperative cancellation point
+   *
+   * @throws CancellationException if cancellation of the job requested
+   */
+  final void checkCancelled() {
+    if(isCancellationRequested())
+      throw new CancellationException("Job $this is cancelled")
+  }
+
   final <S> ContinuableJob<S> job(ContinuableJob<S> job) {
       if(currentJob.get() != this)
         throw new IllegalStateException("Subjob can be attached only while job is running")
@@ -57,12 +149,25 @@ import java.util.concurrent.Callable
         throw new IllegalStateException("Executor is already set for ContinuableJob")
 
       job.executor = executor
+      job.owner = this
+      if(deadline && (!job.deadline || deadline - job.deadline < 0))
+        job.deadline = deadline
 
+      pending.incrementAndGet()
       for(;;) {
         def sj = subJobs
         if(subJobs.compareAndSet(sj, sj + job))
           break
       }
+
+      if(isDone()) {
+        job.cancel(false)
+      }
+      else {
+        job.armDeadline()
+        executor.execute job
+      }
+      job
   }
 
   protected void whenChildJobReady(ContinuableJob subJob) {
@@ -74,20 +179,21 @@ import java.util.concurrent.Callable
   protected void done() {
     executor = null
 
+    deadlineTask?.cancel()
+
     cancelSubJobs()
 
     super.done () // invoke listeners
 
-
+    owner?.subJobCompleted(this)
   }
 
   final void run () {
     if (setRunningThread()) {
         currentJob.set(this)
 
-        def value
         try {
-            value = call ()
+            result = call ()
             currentJob.set(null)
         }
         catch (Throwable ex) {
@@ -95,12 +201,80 @@ import java.util.concurrent.Callable
             throwException(ex)
             return
         }
+
+        completedOne()
     }
     else {
       throwException(new IllegalStateException("Job $this is started already"))
     }
   }
 
+  private void subJobCompleted(ContinuableJob subJob) {
+    for (;;) {
+      def sj = subJobs
+      if (sj.empty || subJobs.compareAndSet(sj, sj - subJob))
+        break
+    }
+
+    whenChildJobReady(subJob)
+
+    if(isDone())
+      return
+
+    if(subJob.isSet()) {
+      if(scope == FIRST_SUCCESS) {
+        set((V)subJob.get())
+        return
+      }
+    }
+    else {
+      Throwable failure
+      try {
+        subJob.get()
+      }
+      catch(ExecutionException e) {
+        failure = e.cause
+      }
+      catch(CancellationException e) {
+        failure = e
+      }
+
+      if(scope == ALL_MUST_SUCCEED) {
+        throwException(failure)
+        return
+      }
+      lastSubJobFailure = failure
+    }
+
+    completedOne()
+  }
+
+  private void completedOne() {
+    if(!pending.decrementAndGet()) {
+      whenChildrenJobsReady()
+
+      def failure = lastSubJobFailure
+      if(failure) {
+        // FIRST_SUCCESS scope and no sub job succeeded
+        setException(failure)
+      }
+      else {
+        set(result)
+      }
+    }
+  }
+
+  private void armDeadline() {
+    if(deadline) {
+      def delay = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+      TimerTask task = {
+        setException(new TimeoutException("Deadline of job $this passed"))
+      }
+      deadlineTask = task
+      CallLaterExecutors.globalTimer.schedule(task, delay > 0 ? delay : 0L)
+    }
+  }
+
   private void throwException(Throwable ex) {
     cancelSubJobs()
     setException(ex)
@@ -111,7 +285,8 @@ import java.util.concurrent.Callable
       def sj = subJobs
       if (subJobs.compareAndSet(sj, FList.emptyList)) {
         for (job in sj) {
-          job.cancel(true)
+          // cooperative cancellation, no interrupts
+          job.cancel(false)
         }
         break
       }
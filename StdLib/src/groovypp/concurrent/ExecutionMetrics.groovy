@@ -0,0 +1,200 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import javax.management.ObjectName
+
+/**
+ * Counters and latency histograms of executor or channel
+ *
+ * Instrumentation is opt-in: executors and channels record nothing until metrics object is assigned to them.
+ * When it is, each submitted task or message is wrapped in to {@link Stamped} carrying time of submission,
+ * so time in queue and processing time are measured per task.
+ *
+ * All metrics are kept in registry by name (pull API) and optionally exposed as JMX MBeans
+ * with object name groovypp:type=ExecutionMetrics,name=&lt;name&gt;
+ */
+@Typed final class ExecutionMetrics implements ExecutionMetricsMBean {
+    private static final ConcurrentHashMap<String,ExecutionMetrics> registry = []
+
+    final String name
+
+    private final StripedLongAtom submittedCount = [], startedCount = [], completedCount = [], failedCount = [], rejectedCount = []
+
+    final LatencyHistogram queueTime = [], processingTime = []
+
+    private volatile ObjectName objectName
+
+    private ExecutionMetrics (String name) {
+        this.name = name
+    }
+
+    /**
+     * Creates and registers new metrics
+     *
+     * @param registerMBean if true metrics are exposed via platform MBean server
+     */
+    static ExecutionMetrics create (String name, boolean registerMBean = true) {
+        ExecutionMetrics metrics = [name]
+        if (registry.putIfAbsent(name, metrics))
+            throw new IllegalArgumentException("Metrics '$name' already exist")
+
+        if (registerMBean) {
+            def objectName = new ObjectName("groovypp:type=ExecutionMetrics,name=" + ObjectName.quote(name))
+            ManagementFactory.platformMBeanServer.registerMBean(metrics, objectName)
+            metrics.objectName = objectName
+        }
+        metrics
+    }
+
+    static ExecutionMetrics get (String name) {
+        registry.get(name)
+    }
+
+    static Collection<ExecutionMetrics> getAll () {
+        registry.values()
+    }
+
+    /**
+     * Removes metrics from registry and MBean server
+     */
+    void close () {
+        registry.remove(name, this)
+        def registered = objectName
+        if (registered) {
+            objectName = null
+            ManagementFactory.platformMBeanServer.unregisterMBean(registered)
+        }
+    }
+
+    /**
+     * Wraps task or message being submitted
+     */
+    Stamped stamp (Object task) {
+        submittedCount.increment()
+        new Stamped(this, task, System.nanoTime())
+    }
+
+    /**
+     * Called when task or message stamped before was not accepted
+     */
+    void rejected () {
+        rejectedCount.increment()
+    }
+
+    /**
+     * Called when processing of stamped task or message starts
+     *
+     * @return start time to be passed to {@link #completed(long)} or {@link #failed(long)}
+     */
+    long started (Stamped stamped) {
+        startedCount.increment()
+        def now = System.nanoTime()
+        queueTime.record(now - stamped.submittedAt)
+        now
+    }
+
+    void completed (long startedAt) {
+        processingTime.record(System.nanoTime() - startedAt)
+        completedCount.increment()
+    }
+
+    void failed (long startedAt) {
+        processingTime.record(System.nanoTime() - startedAt)
+        failedCount.increment()
+    }
+
+    String getName () { name }
+
+    long getSubmitted () { submittedCount.sum() }
+
+    long getStarted () { startedCount.sum() }
+
+    long getCompleted () { completedCount.sum() }
+
+    long getFailed () { failedCount.sum() }
+
+    long getRejected () { rejectedCount.sum() }
+
+    /**
+     * Number of tasks submitted but not started yet
+     */
+    long getQueueDepth () {
+        // read started before submitted, so the difference is never negative
+        def done = startedCount.sum() + rejectedCount.sum()
+        Math.max(0L, submittedCount.sum() - done)
+    }
+
+    double getMeanQueueTime () { queueTime.mean / 1000.0d }
+
+    long getQueueTime99 () { TimeUnit.NANOSECONDS.toMicros(queueTime.getPercentile(99)) }
+
+    long getMaxQueueTime () { TimeUnit.NANOSECONDS.toMicros(queueTime.max) }
+
+    double getMeanProcessingTime () { processingTime.mean / 1000.0d }
+
+    long getProcessingTime50 () { TimeUnit.NANOSECONDS.toMicros(processingTime.getPercentile(50)) }
+
+    long getProcessingTime99 () { TimeUnit.NANOSECONDS.toMicros(processingTime.getPercentile(99)) }
+
+    long getMaxProcessingTime () { TimeUnit.NANOSECONDS.toMicros(processingTime.max) }
+
+    /**
+     * Clears histograms. Counters are cumulative and never reset
+     */
+    void resetTimes () {
+        queueTime.reset()
+        processingTime.reset()
+    }
+
+    String toString () {
+        "$name: submitted=$submitted completed=$completed failed=$failed rejected=$rejected depth=${getQueueDepth()} queueTime[$queueTime] processingTime[$processingTime]"
+    }
+
+    /**
+     * Task or message with time of submission
+     */
+    static final class Stamped implements Runnable {
+        final ExecutionMetrics metrics
+        final Object task
+        final long submittedAt
+
+        Stamped (ExecutionMetrics metrics, Object task, long submittedAt) {
+            this.metrics = metrics
+            this.task = task
+            this.submittedAt = submittedAt
+        }
+
+        /**
+         * Runs wrapped Runnable measuring it
+         */
+        void run () {
+            def start = metrics.started(this)
+            try {
+                ((Runnable)task).run()
+            }
+            catch (Throwable t) {
+                metrics.failed(start)
+                throw t
+            }
+            metrics.completed(start)
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * JMX view of {@link ExecutionMetrics}. Times are in microseconds
+ */
+interface ExecutionMetricsMBean {
+    String getName ()
+
+    long getSubmitted ()
+
+    long getStarted ()
+
+    long getCompleted ()
+
+    long getFailed ()
+
+    long getRejected ()
+
+    long getQueueDepth ()
+
+    double getMeanQueueTime ()
+
+    long getQueueTime99 ()
+
+    long getMaxQueueTime ()
+
+    double getMeanProcessingTime ()
+
+    long getProcessingTime50 ()
+
+    long getProcessingTime99 ()
+
+    long getMaxProcessingTime ()
+
+    void resetTimes ()
+}
@@ -32,6 +32,11 @@ import java.util.concurrent.locks.LockSupport
 
   private CountDownLatch termination
 
+  /**
+   * If set, time in queue and execution time of each task are recorded
+   */
+  volatile ExecutionMetrics metrics
+
   FThreadPool(int num = Runtime.getRuntime().availableProcessors(), ThreadFactory threadFactory = Executors.defaultThreadFactory()) {
     for(i in 0..<num) {
       termination = [num]
@@ -65,7 +70,7 @@ import java.util.concurrent.locks.LockSupport
   private boolean tryRun(FQueue<Runnable> q) {
     def got = q.removeFirst()
     if(queue.compareAndSet(q, got.second)) {
-      got.first.run()
+      runTask(got.first)
       return true
     }
     return false
@@ -81,17 +86,40 @@ import java.util.concurrent.locks.LockSupport
       else {
         def got = q.removeFirst().second.removeFirst()
         if(queue.compareAndSet(q, got.second.addFirst(stopMarker))) {
-          got.first.run()
+          runTask(got.first)
         }
       }
     }
   }
 
+  private void runTask(Runnable task) {
+    def tracer = Tracer.active(Tracer.TASKS)
+    if (!tracer) {
+      task.run()
+      return
+    }
+
+    def span = tracer.begin(Tracer.TASKS)
+    def start = System.nanoTime()
+    try {
+      task.run()
+    }
+    finally {
+      tracer.taskExecuted(span, this, task instanceof ExecutionMetrics.Stamped ? ((ExecutionMetrics.Stamped)task).task : task, System.nanoTime() - start)
+    }
+  }
+
   void execute(Runnable command) {
+    def recorder = metrics
+    if (recorder)
+      command = recorder.stamp(command)
+
     for(;;) {
       def q = queue
-      if (!q.empty && q.first == stopMarker)
+      if (!q.empty && q.first == stopMarker) {
+        recorder?.rejected()
         throw new RejectedExecutionException()
+      }
 
       if(queue.compareAndSet(q, q + command)) {
         semaphore.release()
@@ -132,7 +160,7 @@ import java.util.concurrent.locks.LockSupport
       def q = queue
       if(queue.compareAndSet(q, FQueue.emptyQueue + stopMarker)) {
         semaphore.release(Integer.MAX_VALUE)
-        return q.iterator().asList()
+        return q.iterator().map { Runnable r -> r instanceof ExecutionMetrics.Stamped ? (Runnable)((ExecutionMetrics.Stamped)r).task : r }.asList()
       }
     }
   }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.lang.reflect.Constructor
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+
+/**
+ * Tracer emitting Java Flight Recorder events
+ *
+ * Event types are defined at runtime via jdk.jfr.EventFactory, which is looked up reflectively,
+ * so the class can be loaded on any JVM. Whether event type is enabled is cached and refreshed by listener
+ * of recording state changes, so without running recording instrumented code does not even measure time.
+ *
+ * Message processing and task execution are recorded as spans between begin() and end() of the event,
+ * so they appear on the recording timeline. Latency of futures and duration of CAS retries are known only
+ * after the fact and reported as event fields.
+ */
+@Typed final class FlightRecorderTracer extends Tracer {
+    private final Method newEvent, setField, beginEvent, endEvent, commit, isEnabled, removeListener
+
+    /**
+     * Event factories and types indexed by kind of event
+     */
+    private final Object[] factories = new Object[4], types = new Object[4]
+
+    private final Object listener
+
+    private volatile boolean[] enabledKinds = new boolean[4]
+
+    static boolean isSupported () {
+        try {
+            Class.forName("jdk.jfr.EventFactory")
+            true
+        }
+        catch (Throwable ignore) {
+            false
+        }
+    }
+
+    FlightRecorderTracer () {
+        def factoryClass  = Class.forName("jdk.jfr.EventFactory")
+        def eventClass    = Class.forName("jdk.jfr.Event")
+        def typeClass     = Class.forName("jdk.jfr.EventType")
+        def recorderClass = Class.forName("jdk.jfr.FlightRecorder")
+        def listenerClass = Class.forName("jdk.jfr.FlightRecorderListener")
+
+        newEvent   = factoryClass.getMethod("newEvent")
+        setField   = eventClass.getMethod("set", Integer.TYPE, Object)
+        beginEvent = eventClass.getMethod("begin")
+        endEvent   = eventClass.getMethod("end")
+        commit     = eventClass.getMethod("commit")
+        isEnabled  = typeClass.getMethod("isEnabled")
+
+        factories[MESSAGES] = define("groovypp.MessageProcessed", "Message Processed",
+                [field(String, "channel", "Channel", false), field(String, "messageClass", "Message Class", false)])
+        factories[TASKS] = define("groovypp.TaskExecuted", "Task Executed",
+                [field(String, "executor", "Executor", false), field(String, "taskClass", "Task Class", false)])
+        factories[FUTURES] = define("groovypp.FutureCompleted", "Future Completed",
+                [field(String, "futureClass", "Future Class", false), field(Integer.TYPE, "outcome", "Outcome", false), field(Long.TYPE, "latency", "Latency", true)])
+        factories[CAS_RETRIES] = define("groovypp.CasRetries", "CAS Retries",
+                [field(String, "target", "Target", false), field(Integer.TYPE, "retries", "Retries", false), field(Long.TYPE, "retryTime", "Retry Time", true)])
+
+        def getEventType = factoryClass.getMethod("getEventType")
+        for (i in 0..<factories.length)
+            types[i] = getEventType.invoke(factories[i])
+
+        InvocationHandler handler = { proxy, method, args ->
+            switch (method.name) {
+                case "recordingStateChanged":
+                case "recorderInitialized":
+                    refresh()
+                    return null
+                case "hashCode":
+                    return System.identityHashCode(proxy)
+                case "equals":
+                    return proxy.is(args[0])
+                case "toString":
+                    return "FlightRecorderTracer listener"
+            }
+            null
+        }
+        listener = Proxy.newProxyInstance(listenerClass.classLoader, [listenerClass] as Class[], handler)
+        recorderClass.getMethod("addListener", listenerClass).invoke(null, listener)
+        removeListener = recorderClass.getMethod("removeListener", listenerClass)
+        refresh()
+    }
+
+    /**
+     * Stops tracking of recording state. Called when other tracer replaces this one
+     */
+    void close () {
+        removeListener.invoke(null, listener)
+    }
+
+    boolean isEnabled (int kind) {
+        enabledKinds[kind]
+    }
+
+    Object begin (int kind) {
+        def event = newEvent.invoke(factories[kind])
+        beginEvent.invoke(event)
+        event
+    }
+
+    void messageProcessed(Object span, Object channel, Object message, long durationNanos) {
+        if (span)
+            end(span, describe(channel), message?.getClass()?.name)
+    }
+
+    void taskExecuted(Object span, Object executor, Object task, long durationNanos) {
+        if (span)
+            end(span, describe(executor), task?.getClass()?.name)
+    }
+
+    void futureCompleted(BindLater future, int outcome, long latencyNanos) {
+        emit(factories[FUTURES], future.getClass().name, outcome, latencyNanos)
+    }
+
+    void casRetried(Object target, int retries, long durationNanos) {
+        emit(factories[CAS_RETRIES], describe(target), retries, durationNanos)
+    }
+
+    /**
+     * Reads enabled state of event types. Settings take effect when state of some recording changes
+     */
+    private void refresh () {
+        boolean[] res = new boolean[types.length]
+        for (i in 0..<types.length)
+            res[i] = (Boolean)isEnabled.invoke(types[i])
+        enabledKinds = res
+    }
+
+    private void end (Object event, Object a, Object b) {
+        endEvent.invoke(event)
+        setField.invoke(event, 0, a)
+        setField.invoke(event, 1, b)
+        commit.invoke(event)
+    }
+
+    private void emit (Object factory, Object a, Object b, Object c) {
+        def event = newEvent.invoke(factory)
+        setField.invoke(event, 0, a)
+        setField.invoke(event, 1, b)
+        setField.invoke(event, 2, c)
+        commit.invoke(event)
+    }
+
+    private static String describe (Object o) {
+        o == null ? null : o.getClass().name + "@" + Integer.toHexString(System.identityHashCode(o))
+    }
+
+    private static Object define (String name, String label, List fields) {
+        def annotations = [annotation("jdk.jfr.Name", name), annotation("jdk.jfr.Label", label), annotation("jdk.jfr.Category", (Object)(String[])["Groovy++"])]
+        Class.forName("jdk.jfr.EventFactory").getMethod("create", List, List).invoke(null, annotations, fields)
+    }
+
+    private static Object field (Class type, String name, String label, boolean timespan) {
+        def annotations = [annotation("jdk.jfr.Label", label)]
+        if (timespan)
+            annotations << annotation("jdk.jfr.Timespan", "NANOSECONDS")
+
+        Constructor ctor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class, String, List)
+        ctor.newInstance(type, name, annotations)
+    }
+
+    private static Object annotation (String annotationClass, Object value) {
+        Constructor ctor = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class, Object)
+        ctor.newInstance(Class.forName(annotationClass), value)
+    }
+}
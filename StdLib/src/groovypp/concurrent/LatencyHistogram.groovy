@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free histogram of durations in nanoseconds
+ *
+ * Buckets are logarithmic: each power of two is split in to SUB_BUCKETS linear sub-buckets, so any value
+ * is reported with relative error below 1/SUB_BUCKETS in fixed memory. Recording is one atomic increment
+ * of the bucket plus striped update of the total.
+ */
+@Typed final class LatencyHistogram {
+    private static final int SUB_BITS = 3
+    private static final int SUB_BUCKETS = 1 << SUB_BITS
+
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS
+
+    private final AtomicLongArray buckets = [BUCKETS]
+
+    private final StripedLongAtom total = []
+
+    private final AtomicLong max = []
+
+    void record (long nanos) {
+        if (nanos < 0L)
+            nanos = 0L
+
+        buckets.incrementAndGet(bucket(nanos))
+        total.add(nanos)
+
+        for (;;) {
+            def m = max.get()
+            if (nanos <= m || max.compareAndSet(m, nanos))
+                break
+        }
+    }
+
+    long getCount () {
+        long count = 0L
+        for (int i = 0; i != BUCKETS; ++i)
+            count += buckets.get(i)
+        count
+    }
+
+    long getMax () {
+        max.get()
+    }
+
+    double getMean () {
+        def count = getCount()
+        count ? (double)total.sum() / count : 0.0d
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return upper bound of the bucket containing given percentile
+     */
+    long getPercentile (double percentile) {
+        long[] counts = new long[BUCKETS]
+        long count = 0L
+        for (int i = 0; i != BUCKETS; ++i) {
+            counts[i] = buckets.get(i)
+            count += counts[i]
+        }
+        if (!count)
+            return 0L
+
+        long rank = Math.max(1L, (long)Math.ceil(percentile * count / 100.0d))
+        long seen = 0L
+        for (int i = 0; i != BUCKETS; ++i) {
+            seen += counts[i]
+            if (seen >= rank)
+                return Math.min(upperBound(i), getMax())
+        }
+        getMax()
+    }
+
+    /**
+     * Clears recorded values. Values recorded concurrently may survive the reset
+     */
+    void reset () {
+        for (int i = 0; i != BUCKETS; ++i)
+            buckets.set(i, 0L)
+        total.sumThenReset()
+        max.set(0L)
+    }
+
+    String toString () {
+        "count=${getCount()} mean=${(long)getMean()} p50=${getPercentile(50)} p99=${getPercentile(99)} max=${getMax()}"
+    }
+
+    private static int bucket (long value) {
+        if (value < SUB_BUCKETS)
+            return (int)value
+
+        int exp = 63 - Long.numberOfLeadingZeros(value)
+        int sub = (int)(value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1)
+        (exp - SUB_BITS + 1) * SUB_BUCKETS + sub
+    }
+
+    private static long upperBound (int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket
+
+        int exp = bucket.intdiv(SUB_BUCKETS) + SUB_BITS - 1
+        long width = 1L << (exp - SUB_BITS)
+        (1L << exp) + (bucket & (SUB_BUCKETS - 1)) * width + width - 1
+    }
+}
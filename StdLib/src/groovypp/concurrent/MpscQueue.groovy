@@ -0,0 +1,84 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Unbounded multi-producer/single-consumer linked queue (Dmitry Vyukov's intrusive node based queue)
+ *
+ * Producer allocates one node and does one atomic swap, which never fails, so there are no retries under
+ * contention. Consumer works with plain fields. The class extends AtomicReference holding the last node
+ * to save one indirection.
+ *
+ * Between swap and linking of the node by a producer the queue is not empty but the node is not reachable yet,
+ * so {@link #poll()} may return null while {@link #isEmpty()} returns false.
+ */
+@Typed final class MpscQueue<T> extends AtomicReference<MpscQueue.Node<T>> {
+    /**
+     * First node, which is already consumed. Accessed by consumer only
+     */
+    private Node<T> first
+
+    MpscQueue () {
+        Node<T> stub = []
+        first = stub
+        set(stub)
+    }
+
+    /**
+     * Adds element. May be called by any thread
+     */
+    void add (T value) {
+        Node<T> node = [value]
+        getAndSet(node).next = node
+    }
+
+    /**
+     * Removes first node. Must be called by consumer only
+     *
+     * @return node holding removed element or null if no element is available yet
+     */
+    Node<T> poll () {
+        def next = first.next
+        if (next == null)
+            return null
+
+        first = next
+        next
+    }
+
+    /**
+     * Consumer side emptiness check
+     */
+    boolean isEmpty () {
+        get() === first
+    }
+
+    static final class Node<T> {
+        /**
+         * Element. Consumer may clear it after processing
+         */
+        T value
+
+        volatile Node<T> next
+
+        Node (T value = null) {
+            this.value = value
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Transactional reference
+ *
+ * Refs can be modified only inside of transaction (see {@link Transaction}) and all refs modified by
+ * a transaction change atomically. Each ref keeps a few last committed versions of its value, so
+ * transactions read consistent snapshot without locking.
+ *
+ * Referenced values supposed to be immutable (normally persistent structures like FHashMap, FVector or FList),
+ * so keeping older versions costs nothing but a reference.
+ *
+ * @param < T > type of referenced data
+ */
+@Typed class Ref<T> extends AbstractRef<T> {
+  private static final AtomicLong idGenerator = []
+
+  /**
+   * Unique id used to order refs when locking them on commit
+   */
+  final long id = idGenerator.incrementAndGet()
+
+  /**
+   * Max number of committed versions kept for readers of older snapshots
+   */
+  final int maxHistory
+
+  protected volatile Version<T> history
+
+  /**
+   * Transaction, which is committing changes to this ref at the moment
+   */
+  protected volatile Transaction lockedBy
+
+  Ref (T value = null, int maxHistory = 8) {
+    this.maxHistory = maxHistory
+    history = [value, 0L, null, 1]
+  }
+
+  protected static final class Version<T> {
+    final T value
+    final long version
+    final Version<T> prior
+    final int depth
+
+    Version(T value, long version, Version<T> prior, int depth) {
+      this.value = value
+      this.version = version
+      this.prior = prior
+      this.depth = depth
+    }
+
+    Version<T> trim(int keep) {
+      keep == 1 || prior == null ? new Version<T>(value, version, null, 1) : new Version<T>(value, version, prior.trim(keep-1), keep)
+    }
+  }
+
+  /**
+   * @return value visible to current transaction or last committed value if called outside of transaction
+   */
+  final T get() {
+    def tx = Transaction.current
+    tx ? (T)tx.read(this) : history.value
+  }
+
+  /**
+   * Sets new value. Can be called only inside of transaction
+   */
+  final void set(T value) {
+    Transaction.required().write(this, value)
+  }
+
+  /**
+   * Sets new value calculated from current one. Can be called only inside of transaction
+   */
+  final T alter(Function1<T,T> mutation) {
+    def tx = Transaction.required()
+    def newValue = mutation((T)tx.read(this))
+    tx.write(this, newValue)
+    newValue
+  }
+
+  final T call(Function1<T,T> mutation) {
+    alter(mutation)
+  }
+
+  /**
+   * Schedules commutative mutation, which will be applied to the latest committed value at commit time.
+   *
+   * Unlike alter this does not add the ref to the read set, so concurrent commutes never conflict with each other.
+   * Can be called only inside of transaction
+   */
+  final void commute(Function1<T,T> mutation) {
+    Transaction.required().commute(this, mutation)
+  }
+
+  protected final void install(T value, long version) {
+    def h = history
+    history = h.depth < 2*maxHistory ? new Version<T>(value, version, h, h.depth+1) : new Version<T>(value, version, h.trim(maxHistory-1), maxHistory)
+  }
+
+  protected final void committed(T oldValue, T newValue) {
+    notifyListeners(oldValue, newValue)
+  }
+
+  protected final void validateValue(T value) {
+    validate(value)
+  }
+}
@@ -16,8 +16,10 @@
 
 package groovypp.concurrent
 
+import java.lang.ref.WeakReference
 import java.util.concurrent.Executor
-import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicReference
 
 @GrUnit({
@@ -43,142 +45,365 @@ import java.util.concurrent.atomic.AtomicReference
     Executor executor
     boolean  runFair
 
+    /**
+     * If set, released resource is kept in cache of releasing thread,
+     * so the next action started from the same thread gets it without touching shared state.
+     * Resources cached by one thread are still stolen by others, when shared pool is exhausted.
+     */
+    boolean  threadAffinity
+
+    /**
+     * Minimal number of resources created on pool initialization
+     */
+    int      minSize
+
+    /**
+     * Max number of resources the pool grows to on demand.
+     * Zero means the pool never grows beyond resources provided by initResources and add
+     */
+    int      maxSize
+
     private volatile Pair<FQueue<Function1<R,Object>>,FList<R>> state = [FQueue.emptyQueue,null]
 
+    /**
+     * Number of live resources owned by the pool
+     */
+    private volatile int size
+
+    private static final int MAX_THREAD_CACHES = 64
+
+    private final ThreadLocal<ThreadCache<R>> threadCache = []
+
+    /**
+     * Caches of threads, which released resources. Caches of dead threads are removed when new cache is registered
+     */
+    private volatile FList<ThreadCache<R>> threadCaches = FList.emptyList
+
     /**
      * @return created pooled resources
      */
     abstract Iterable<R> initResources ()
 
+    /**
+     * Creates one more resource when pool grows on demand.
+     *
+     * Default implementation takes first resource provided by initResources
+     *
+     * @return new resource or null if no resource can be created
+     */
+    protected R createResource () {
+        def it = initResources().iterator()
+        it.hasNext() ? it.next() : null
+    }
+
     abstract static class Action<R,D> extends BindLater<D> implements Function1<R,D> {}
 
     abstract static class Allocate<R> implements Function1<R,Object> {}
 
     final <D> BindLater<D> execute (Action<R,D> action, BindLater.Listener<D> whenDone = null) {
         action.whenBound(whenDone)
+        dispatch(action)
+        action
+    }
 
-        if (state.second == null) {
-            initPool ()
+    /**
+     * Executes action, which will fail with TimeoutException if it is not completed in given time.
+     * Action, which is still waiting for resource at that moment, is removed from the queue
+     */
+    final <D> BindLater<D> execute (Action<R,D> action, long timeout, TimeUnit unit, BindLater.Listener<D> whenDone = null) {
+        TimerTask task = {
+            if (action.setException(new TimeoutException("Action was not completed in $timeout $unit")))
+                removeWaiting(action)
         }
-        for (;;) {
-            def s = state
-            if (s.second.empty) {
-                // no resource available, so put action in to the queue
-                if(state.compareAndSet(s, [s.first.addLast(action), FList.emptyList]))
-                    return action
-            }
-            else {
-                // queue is guaranteed to be empty
-                if(state.compareAndSet(s, [FQueue.emptyQueue, s.second.tail])) {
-                    if(!isResourceAlive(s.second.head))
-                      continue
+        action.whenBound { task.cancel() }
+        CallLaterExecutors.globalTimer.schedule(task, unit.toMillis(timeout))
+        execute(action, whenDone)
+    }
 
-                    // schedule action
-                    executor.execute {
-                        scheduledAction(action,s.second.head)
-                    }
-                    return action
-                }
+    final void allocateResource (Allocate<R> action) {
+        dispatch(action)
+    }
+
+    void releaseResource (R resource) {
+        if(!isResourceAlive(resource)) {
+            size.decrementAndGet()
+            return
+        }
+
+        def next = park(resource, threadAffinity)
+        if (next) {
+            executor.execute {
+                scheduledAction(next,resource)
             }
         }
     }
 
-    final void allocateResource (Allocate<R> action) {
+    private void dispatch (Function1<R,Object> action) {
         if (state.second == null) {
             initPool ()
         }
+
+        if (threadAffinity) {
+            def cache = threadCache.get()
+            def cached = cache?.getAndSet(null)
+            if (cached != null) {
+                if (isResourceAlive(cached)) {
+                    schedule(action, cached)
+                    return
+                }
+                size.decrementAndGet()
+            }
+        }
+
         for (;;) {
             def s = state
             if (s.second.empty) {
+                // idle resources cached by other threads go first, so pool grows only when all resources are busy
+                if (threadAffinity) {
+                    def stolen = stealCached()
+                    if (stolen != null) {
+                        if (isResourceAlive(stolen)) {
+                            schedule(action, stolen)
+                            return
+                        }
+                        size.decrementAndGet()
+                        continue
+                    }
+                }
+
+                if (tryGrow(action))
+                    return
+
                 // no resource available, so put action in to the queue
-                if(state.compareAndSet(s, [s.first.addLast(action), FList.emptyList]))
+                if(state.compareAndSet(s, [s.first.addLast(action), FList.emptyList])) {
+                    if (threadAffinity) {
+                        // resource might be parked in some thread cache after we checked
+                        def late = stealCached()
+                        if (late != null)
+                            releaseResource(late)
+                    }
                     return
+                }
             }
             else {
                 // queue is guaranteed to be empty
                 if(state.compareAndSet(s, [FQueue.emptyQueue, s.second.tail])) {
-                    if(!isResourceAlive(s.second.head))
+                    if(!isResourceAlive(s.second.head)) {
+                      size.decrementAndGet()
                       continue
-
-                    // schedule action
-                    executor.execute {
-                        scheduledAction(action,s.second.head)
                     }
+
+                    schedule(action, s.second.head)
                     return
                 }
             }
         }
     }
 
-    void releaseResource (R resource) {
-        if(!isResourceAlive(resource))
-          return
+    private void schedule (Function1<R,Object> action, R resource) {
+        executor.execute {
+            scheduledAction(action,resource)
+        }
+    }
+
+    private boolean tryGrow (Function1<R,Object> action) {
+        for (;;) {
+            def sz = size
+            if (!maxSize || sz >= maxSize)
+                return false
+            if (size.compareAndSet(sz, sz+1))
+                break
+        }
+
+        R resource
+        try {
+            resource = createResource()
+        }
+        catch (Throwable t) {
+            size.decrementAndGet()
+            throw t
+        }
+
+        if (resource == null) {
+            size.decrementAndGet()
+            return false
+        }
+
+        schedule(action, resource)
+        true
+    }
+
+    /**
+     * Returns resource either to cache of current thread or to the pool
+     *
+     * @return action waiting for the resource or null if resource is parked
+     */
+    private Function1<R,Object> park (R resource, boolean useThreadCache) {
+        if (useThreadCache && parkInThreadCache(resource))
+            return null
 
         for (;;) {
             def s = state
             if (s.first.empty) {
                 // no more actions => we return resource to the pool
                 if(state.compareAndSet(s, [FQueue.emptyQueue, s.second + resource])) {
-                    break
+                    return null
                 }
             }
             else {
                 def removed = s.first.removeFirst()
                 if(state.compareAndSet(s, [removed.second, s.second])) {
-                    executor.execute {
-                        scheduledAction(removed.first,resource)
-                    }
-                    return
+                    return removed.first
                 }
             }
         }
     }
 
-    private final <D> Object scheduledAction(Function1<R,D> action, R resource) {
-        switch(action) {
-            case Action:
-              try {
-                  action.set(action(resource))
-              }
-              catch(t) {
-                  action.setException(t)
-              }
-            break
+    private boolean parkInThreadCache (R resource) {
+        if (!state.first.empty)
+            return false
 
-            case Allocate:
-              action(resource)
-              return
-            break
+        def cache = threadCache.get()
+        if (cache == null) {
+            if (!registerThreadCache())
+                return false
+            cache = threadCache.get()
+        }
+        else {
+            if (cache.get() != null)
+                return false
         }
 
-        if(!isResourceAlive(resource))
-          return
+        cache.set(resource)
+        if (!state.first.empty) {
+            // somebody started waiting concurrently, so give resource to him
+            if (cache.compareAndSet(resource, null))
+                return false
+        }
+        true
+    }
+
+    /**
+     * Creates cache for current thread unless too many live threads have caches already
+     */
+    private boolean registerThreadCache () {
+        pruneThreadCaches()
+
+        ThreadCache<R> cache = [Thread.currentThread()]
+        for (;;) {
+            def caches = threadCaches
+            if (caches.size() >= MAX_THREAD_CACHES)
+                return false
+            if (threadCaches.compareAndSet(caches, caches + cache))
+                break
+        }
+        threadCache.set(cache)
+        true
+    }
+
+    /**
+     * Removes caches of dead threads and returns resources they held to the pool
+     */
+    private void pruneThreadCaches () {
+        FList<ThreadCache<R>> dead = FList.emptyList
+        for (cache in threadCaches) {
+            if (!cache.ownerAlive)
+                dead += cache
+        }
+        if (dead.empty)
+            return
+
+        for (;;) {
+            def caches = threadCaches
+            def alive = caches
+            for (cache in dead)
+                alive -= cache
+            if (threadCaches.compareAndSet(caches, alive))
+                break
+        }
+
+        for (cache in dead) {
+            def resource = cache.getAndSet(null)
+            if (resource != null) {
+                def next = park(resource, false)
+                if (next)
+                    schedule(next, resource)
+            }
+        }
+    }
+
+    private R stealCached () {
+        for (cache in threadCaches) {
+            if (cache.get() != null) {
+                def res = cache.getAndSet(null)
+                if (res != null)
+                    return res
+            }
+        }
+        null
+    }
+
+    private static final class ThreadCache<R> extends AtomicReference<R> {
+        private final WeakReference<Thread> owner
+
+        ThreadCache (Thread owner) {
+            this.owner = new WeakReference<Thread>(owner)
+        }
+
+        boolean isOwnerAlive () {
+            def thread = owner.get()
+            thread != null && thread.alive
+        }
+    }
 
+    private void removeWaiting (Function1<R,Object> action) {
         for (;;) {
             def s = state
-            if (s.first.empty) {
-                // no more actions => we return resource to the pool
-                if(state.compareAndSet(s, [FQueue.emptyQueue, s.second + resource])) {
-                    break
-                }
+            def q = s.first.remove(action)
+            if (q === s.first || state.compareAndSet(s, [q, s.second]))
+                return
+        }
+    }
+
+    private final void scheduledAction(Function1<R,Object> action, R resource) {
+        for (;;) {
+            switch(action) {
+                case Action:
+                  // action might be timed out while waiting
+                  if (!action.isDone()) {
+                      try {
+                          action.set(action(resource))
+                      }
+                      catch(t) {
+                          action.setException(t)
+                      }
+                  }
+                break
+
+                case Allocate:
+                  action(resource)
+                  return
             }
-            else {
-                def removed = s.first.removeFirst()
-                if(state.compareAndSet(s, [removed.second, s.second])) {
-                    if (runFair) {
-                        // schedule action
-                        executor.execute {
-                            scheduledAction(removed.first,resource)
-                        }
 
-                        break
-                    }
-                    else {
-                        // tail recursion
-                        return scheduledAction(removed.first, resource)
-                    }
+            if(!isResourceAlive(resource)) {
+              size.decrementAndGet()
+              return
+            }
+
+            def next = park(resource, threadAffinity)
+            if (!next)
+                return
+
+            if (runFair) {
+                // schedule action
+                executor.execute {
+                    scheduledAction(next,resource)
                 }
+                return
             }
+
+            // run next action in the same thread
+            action = next
         }
     }
 
@@ -190,39 +415,34 @@ import java.util.concurrent.atomic.AtomicReference
         if(!isResourceAlive(resource))
           return
 
-        for(;;) {
-            def s = state
-            if (!s.second.empty) {
-                // we guaranteed that there is no waiting tasks
-                if(state.compareAndSet(s, [FQueue.emptyQueue, s.second + resource])) {
-                    break
-                }
-            }
-            else {
-                if(state.first.empty) {
-                    // no pending tasks
-                    if(state.compareAndSet(s, [FQueue.emptyQueue, s.second + resource])) {
-                        break
-                    }
-                }
-                else {
-                    def removed = s.first.removeFirst()
-                    if(state.compareAndSet(s, [removed.second, FList.emptyList])) {
-                        scheduledAction(removed.first, resource)
-                        break
-                    }
-                }
-            }
-        }
+        size.incrementAndGet()
+        def next = park(resource, false)
+        if (next)
+            scheduledAction(next, resource)
     }
 
     boolean isResourceAlive(R resource) {
         true
     }
 
+    /**
+     * @return number of live resources owned by the pool (both idle and busy)
+     */
+    int getSize () {
+        size
+    }
+
     public synchronized void initPool () {
         if (state.second == null) {
-            state.second = FList.emptyList.addAll(initResources ())
+            def resources = FList.emptyList.addAll(initResources ())
+            while (resources.size() < minSize) {
+                def resource = createResource()
+                if (resource == null)
+                    break
+                resources += resource
+            }
+            size = resources.size()
+            state.second = resources
         }
     }
 }
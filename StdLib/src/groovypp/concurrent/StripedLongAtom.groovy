@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Striped counter for commutative updates
+ *
+ * Value is spread over several cells, so concurrent writers mostly update different cache lines.
+ * Reading the value sums all cells, so it is more expensive than update and not atomic with regard to
+ * concurrent updates.
+ */
+@Typed class StripedLongAtom extends Number {
+  /**
+   * 8 longs per cell to keep cells on different cache lines
+   */
+  private static final int PAD_SHIFT = 3
+
+  private static final int GOLDEN_GAMMA = -1640531527 // 0x9e3779b9
+
+  private final AtomicLongArray cells
+  private final int mask
+
+  /**
+   * Cell index remembered by each thread after collision
+   */
+  private static final ThreadLocal<int[]> probe = []
+
+  StripedLongAtom (long initial = 0L, int stripes = 2*Runtime.runtime.availableProcessors()) {
+    int n = 1
+    while (n < stripes)
+      n <<= 1
+    mask = n - 1
+    cells = [n << PAD_SHIFT]
+    cells.set(0, initial)
+  }
+
+  final void add (long delta) {
+    def p = probe.get()
+    if (p == null) {
+      p = new int[1]
+      p[0] = mix((int)Thread.currentThread().id)
+      probe.set(p)
+    }
+    int h = p[0]
+
+    for (;;) {
+      def index = (h & mask) << PAD_SHIFT
+      def v = cells.get(index)
+      if (cells.compareAndSet(index, v, v + delta))
+        return
+
+      // collision, move this thread to another cell
+      h = mix(h + GOLDEN_GAMMA)
+      p[0] = h
+    }
+  }
+
+  final void call (long delta) { add(delta) }
+
+  final void increment () { add(1L) }
+
+  final void decrement () { add(-1L) }
+
+  final long sum () {
+    long sum = 0L
+    for (int i = 0; i <= mask; ++i)
+      sum += cells.get(i << PAD_SHIFT)
+    sum
+  }
+
+  /**
+   * Returns current sum and resets all cells to zero.
+   * Updates made concurrently with reset may be lost from the result but will be preserved in the counter
+   */
+  final long sumThenReset () {
+    long sum = 0L
+    for (int i = 0; i <= mask; ++i)
+      sum += cells.getAndSet(i << PAD_SHIFT, 0L)
+    sum
+  }
+
+  final long get () { sum() }
+
+  long longValue() { sum() }
+
+  int intValue() { (int)sum() }
+
+  float floatValue() { (float)sum() }
+
+  double doubleValue() { (double)sum() }
+
+  String toString () { String.valueOf(sum()) }
+
+  private static int mix (int h) {
+    h ^= (h >>> 16)
+    h *= -2048144789 // 0x85ebca6b
+    h ^= (h >>> 13)
+    h *= -1028477387 // 0xc2b2ae35
+    h ^ (h >>> 16)
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+/**
+ * Receiver of timeline events: message processing, task execution, completion of futures and bursts of CAS retries
+ *
+ * Tracing is off while {@link #current} is null, so instrumented code pays only for reading of volatile field.
+ * Instrumented code also measures only kinds of events, which the tracer is {@link #isEnabled enabled} for.
+ * {@link #enableFlightRecorder()} installs tracer emitting Java Flight Recorder events when JFR is available.
+ */
+@Typed abstract class Tracer {
+    static final int COMPLETED = 0
+    static final int FAILED    = 1
+    static final int CANCELLED = 2
+
+    /**
+     * Kinds of events
+     */
+    static final int MESSAGES    = 0
+    static final int TASKS       = 1
+    static final int FUTURES     = 2
+    static final int CAS_RETRIES = 3
+
+    /**
+     * Installed tracer or null if tracing is off
+     */
+    static volatile Tracer current
+
+    /**
+     * Installs tracer emitting JFR events
+     *
+     * @return false if JVM has no Flight Recorder
+     */
+    static boolean enableFlightRecorder () {
+        if (!FlightRecorderTracer.isSupported())
+            return false
+
+        def previous = current
+        current = new FlightRecorderTracer()
+        if (previous instanceof FlightRecorderTracer)
+            ((FlightRecorderTracer)previous).close()
+        true
+    }
+
+    /**
+     * @return current tracer if it records events of given kind, otherwise null
+     */
+    static Tracer active (int kind) {
+        def tracer = current
+        tracer && tracer.isEnabled(kind) ? tracer : null
+    }
+
+    /**
+     * Checked by instrumented code before it measures activity, so should be cheap
+     *
+     * @return true if events of given kind are recorded
+     */
+    boolean isEnabled (int kind) {
+        true
+    }
+
+    /**
+     * Called when message processing or task execution starts
+     *
+     * @return span passed to messageProcessed or taskExecuted, when the activity ends
+     */
+    Object begin (int kind) {
+        null
+    }
+
+    /**
+     * Called after channel processed message
+     */
+    abstract void messageProcessed (Object span, Object channel, Object message, long durationNanos)
+
+    /**
+     * Called after executor ran task
+     */
+    abstract void taskExecuted (Object span, Object executor, Object task, long durationNanos)
+
+    /**
+     * Called after future completed
+     *
+     * @param outcome one of COMPLETED, FAILED or CANCELLED
+     * @param latencyNanos time since creation of the future
+     */
+    abstract void futureCompleted (BindLater future, int outcome, long latencyNanos)
+
+    /**
+     * Called after compare-and-set loop succeeded after one or more retries
+     *
+     * @param durationNanos time since first failed attempt
+     */
+    abstract void casRetried (Object target, int retries, long durationNanos)
+
+    /**
+     * Counter of failed attempts of compare-and-set loop. Exists only while CAS retries are traced:
+     *
+     * <pre>
+     * Tracer.CasRetries retries = null
+     * for (;;) {
+     *     ...
+     *     if (compareAndSet(...)) {
+     *         retries?.report(target)
+     *         return
+     *     }
+     *     retries = Tracer.CasRetries.failed(retries)
+     * }
+     * </pre>
+     */
+    static final class CasRetries {
+        private final Tracer tracer
+
+        private final long firstFailure
+
+        private int count = 1
+
+        private CasRetries (Tracer tracer) {
+            this.tracer = tracer
+            firstFailure = System.nanoTime()
+        }
+
+        /**
+         * Records failed attempt
+         *
+         * @return counter to pass to the next call or null if retries are not traced
+         */
+        static CasRetries failed (CasRetries retries) {
+            if (retries) {
+                retries.count++
+                return retries
+            }
+
+            def tracer = active(CAS_RETRIES)
+            tracer ? new CasRetries(tracer) : null
+        }
+
+        void report (Object target) {
+            tracer.casRetried(target, count, System.nanoTime() - firstFailure)
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovypp.concurrent
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Multi-version software transaction over {@link Ref}s
+ *
+ * Transaction reads snapshot of all refs as of its start. Writes are buffered and published at commit time
+ * after validation, that nothing the transaction read or wrote was committed by others in between.
+ * Transaction, which failed validation, is retried from the beginning, so transaction body should not have side effects
+ * other than modification of refs.
+ *
+ * <pre>
+ * transaction {
+ *   from.alter { it - amount }
+ *   to.alter   { it + amount }
+ * }
+ * </pre>
+ */
+@Typed final class Transaction {
+  static final int DEFAULT_MAX_RETRIES = 10000
+
+  private static final AtomicLong clock = []
+
+  private static final ThreadLocal<Transaction> currentTransaction = []
+
+  /**
+   * Global version the snapshot was taken at
+   */
+  final long readVersion = clock.get()
+
+  private final IdentityHashMap<Ref,Object> reads = []
+
+  private FHashMap<Ref,Box> writes = FHashMap.emptyMap
+
+  private FHashMap<Ref,FList<Function1>> commutes = FHashMap.emptyMap
+
+  private Transaction () {}
+
+  /**
+   * @return transaction running in current thread or null
+   */
+  static Transaction getCurrent () {
+    currentTransaction.get()
+  }
+
+  static Transaction required () {
+    def tx = currentTransaction.get()
+    if (!tx)
+      throw new IllegalStateException("Ref can be modified only inside of transaction")
+    tx
+  }
+
+  /**
+   * Runs body in transaction and returns its result
+   *
+   * Nested transactions are flattened in to outer one.
+   */
+  static <T> T transaction (Object self, int maxRetries = DEFAULT_MAX_RETRIES, Function0<T> body) {
+    if (currentTransaction.get())
+      return body()
+
+    Backoff backoff = null
+    for (int attempt = 0; attempt < maxRetries; ++attempt) {
+      Transaction tx = []
+      currentTransaction.set(tx)
+      try {
+        def result = body()
+        if (tx.commit())
+          return result
+      }
+      catch (RetryException ignore) {
+      }
+      finally {
+        currentTransaction.remove()
+      }
+
+      if (backoff == null)
+        backoff = []
+      backoff.backoff()
+    }
+    throw new IllegalStateException("Transaction was not committed after $maxRetries attempts")
+  }
+
+  protected final Object read (Ref ref) {
+    def written = writes.get(ref)
+    if (written)
+      return written.value
+
+    if (commutes.get(ref))
+      throw new IllegalStateException("Commuted ref can't be read in the same transaction")
+
+    def value = snapshot(ref)
+    reads.put(ref, Boolean.TRUE)
+    value
+  }
+
+  protected final void write (Ref ref, Object value) {
+    if (commutes.get(ref))
+      throw new IllegalStateException("Commuted ref can't be set in the same transaction")
+
+    def written = writes.get(ref)
+    if (written)
+      written.value = value
+    else
+      writes = writes.put(ref, new Box(value))
+  }
+
+  protected final void commute (Ref ref, Function1 mutation) {
+    def written = writes.get(ref)
+    if (written) {
+      // the ref is in our write set already, so commute is the same as alter
+      written.value = mutation(written.value)
+    }
+    else {
+      def pending = commutes.get(ref)
+      commutes = commutes.put(ref, (pending ? pending : FList.emptyList) + mutation)
+    }
+  }
+
+  /**
+   * Finds version of the ref visible in our snapshot
+   */
+  private Object snapshot (Ref ref) {
+    for (int spins = 0; ; ++spins) {
+      def h = ref.history
+      def owner = ref.lockedBy
+      if (owner && owner !== this) {
+        // somebody commits new version right now
+        if (spins > 100)
+          throw RetryException.INSTANCE
+        Thread.yield()
+        continue
+      }
+
+      if (ref.history !== h)
+        continue
+
+      for (def v = h; v; v = v.prior) {
+        if (v.version <= readVersion)
+          return v.value
+      }
+
+      // our snapshot is too old for this ref
+      throw RetryException.INSTANCE
+    }
+  }
+
+  private boolean commit () {
+    if (writes.empty && commutes.empty)
+      return true
+
+    TreeMap<Long,Ref> locked = []
+    for (e in writes.entrySet())
+      locked.put(e.key.id, e.key)
+    for (e in commutes.entrySet())
+      locked.put(e.key.id, e.key)
+
+    List<Ref> acquired = []
+    try {
+      for (ref in locked.values()) {
+        if (!ref.lockedBy.compareAndSet(null, this))
+          return false
+        acquired << ref
+      }
+
+      // validate read and write sets
+      for (ref in reads.keySet()) {
+        if (ref.history.version > readVersion || (ref.lockedBy && ref.lockedBy !== this))
+          return false
+      }
+      for (e in writes.entrySet()) {
+        if (e.key.history.version > readVersion)
+          return false
+      }
+
+      // commutes are applied to latest committed values
+      for (e in commutes.entrySet()) {
+        def value = e.key.history.value
+        for (mutation in e.value.reverse())
+          value = mutation(value)
+        writes = writes.put(e.key, new Box(value))
+      }
+
+      for (e in writes.entrySet())
+        e.key.validateValue(e.value.value)
+
+      def writeVersion = clock.incrementAndGet()
+      List<Pair<Object,Object>> changes = []
+      for (e in writes.entrySet()) {
+        changes << new Pair<Object,Object>(e.key.history.value, e.value.value)
+        e.key.install(e.value.value, writeVersion)
+      }
+
+      unlock(acquired)
+      acquired = null
+
+      def i = 0
+      for (e in writes.entrySet()) {
+        def change = changes[i++]
+        e.key.committed(change.first, change.second)
+      }
+      true
+    }
+    finally {
+      if (acquired)
+        unlock(acquired)
+    }
+  }
+
+  private void unlock (List<Ref> acquired) {
+    for (ref in acquired)
+      ref.lockedBy = null
+  }
+
+  /**
+   * Holder of written value, so null or false values can be kept in the write set
+   */
+  private static final class Box {
+    Object value
+
+    Box(Object value) {
+      this.value = value
+    }
+  }
+
+  /**
+   * Thrown to unwind transaction body, which has to be restarted
+   */
+  private static class RetryException extends Error {
+    static final RetryException INSTANCE = []
+
+    Throwable fillInStackTrace() {
+      this
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Executor starting new virtual thread for each task
+ *
+ * Virtual threads are looked up reflectively, so the class can be loaded on any JVM,
+ * but instances can be created only if {@link #isSupported()} returns true (JDK 21 or later).
+ *
+ * Tasks know executor they run in via {@link CallLaterExecutors#getCurrentExecutor()},
+ * which plays the same role as {@link CallLaterPool.GroovyThread} for pooled threads.
+ */
+@Typed class VirtualThreadExecutor extends AbstractExecutorService {
+    private static final boolean supported = lookupVirtualThreads()
+
+    private final ThreadFactory threadFactory
+
+    private final AtomicInteger active = []
+
+    private volatile boolean shutdown
+
+    VirtualThreadExecutor(String namePrefix = "groovy-virtual-") {
+        if (!supported)
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM")
+        threadFactory = createThreadFactory(namePrefix)
+    }
+
+    /**
+     * @return true if JVM supports virtual threads
+     */
+    static boolean isSupported () {
+        supported
+    }
+
+    void execute(Runnable command) {
+        // counted before shutdown check, so awaitTermination never misses accepted task
+        active.incrementAndGet()
+        if (shutdown) {
+            taskFinished()
+            throw new RejectedExecutionException("Executor is shut down")
+        }
+
+        def executor = this
+        try {
+            def thread = threadFactory.newThread {
+                CallLaterExecutors.taskExecutor.set(executor)
+                try {
+                    command.run()
+                }
+                finally {
+                    CallLaterExecutors.taskExecutor.remove()
+                    executor.taskFinished()
+                }
+            }
+            thread.start()
+        }
+        catch (Throwable t) {
+            taskFinished()
+            throw t
+        }
+    }
+
+    private void taskFinished() {
+        if (!active.decrementAndGet() && shutdown) {
+            synchronized (this) {
+                notifyAll()
+            }
+        }
+    }
+
+    synchronized void shutdown() {
+        shutdown = true
+        notifyAll()
+    }
+
+    /**
+     * Virtual threads are not interrupted, so it is the same as shutdown ()
+     */
+    List<Runnable> shutdownNow() {
+        shutdown()
+        []
+    }
+
+    boolean isShutdown() {
+        shutdown
+    }
+
+    boolean isTerminated() {
+        shutdown && !active.get()
+    }
+
+    synchronized boolean awaitTermination(long timeout, TimeUnit unit) {
+        def deadline = System.nanoTime() + unit.toNanos(timeout)
+        while (!isTerminated()) {
+            def left = deadline - System.nanoTime()
+            if (left <= 0)
+                return false
+            TimeUnit.NANOSECONDS.timedWait(this, left)
+        }
+        true
+    }
+
+    /**
+     * Creates thread factory and thread (not started), because on JDK 19 and 20 virtual threads are
+     * preview feature and Thread.ofVirtual exists, but fails unless preview is enabled
+     */
+    private static boolean lookupVirtualThreads () {
+        try {
+            createThreadFactory("groovy-virtual-probe-").newThread {}
+            true
+        }
+        catch (Throwable ignore) {
+            false
+        }
+    }
+
+    private static ThreadFactory createThreadFactory (String namePrefix) {
+        def builderClass = Class.forName("java.lang.Thread\$Builder")
+        def builder = Thread.getMethod("ofVirtual").invoke(null)
+        builder = builderClass.getMethod("name", String, Long.TYPE).invoke(builder, namePrefix, 0L)
+        (ThreadFactory)builderClass.getMethod("factory").invoke(builder)
+    }
+}
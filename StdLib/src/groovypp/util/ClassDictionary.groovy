@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.util
+
+/**
+ * Dictionary of class names shared by one writing and one reading stream over the life of a session
+ *
+ * {@link SerialOutputStream} writes only ids of classes and adds names it meets first time to the dictionary.
+ * Writer sends names added while writing a message by {@link #writeAdded} before the message and reader
+ * registers them by {@link #readAdded} before it reads the message, so even message, which fails to deserialize,
+ * does not leave any of its names unknown to the reader. Each side of the session keeps its own instance,
+ * which is not thread safe.
+ *
+ * Classes added while writing message, which was never sent, must be forgotten by {@link #rollback()},
+ * otherwise reader would receive ids it never saw.
+ */
+@Typed final class ClassDictionary {
+    private final HashMap<String, Integer> ids = []
+
+    private final ArrayList<String> names = []
+
+    private int committed
+
+    /**
+     * @return id of the class name or -1 if it is not known yet
+     */
+    int idOf (String name) {
+        def id = ids.get(name)
+        id == null ? -1 : id.intValue()
+    }
+
+    /**
+     * @return name with given id or null if unknown
+     */
+    String nameOf (int id) {
+        id < names.size() ? names.get(id) : null
+    }
+
+    /**
+     * Adds new name
+     *
+     * @return id of the name
+     */
+    int add (String name) {
+        def id = names.size()
+        names << name
+        ids.put(name, id)
+        id
+    }
+
+    /**
+     * Remembers name received with given id
+     */
+    void put (int id, String name) {
+        while (names.size() <= id)
+            names << null
+        names.set(id, name)
+        ids.put(name, id)
+        committed = names.size()
+    }
+
+    int size () {
+        names.size()
+    }
+
+    /**
+     * @return true if names were added since last commit
+     */
+    boolean hasAdded () {
+        names.size() > committed
+    }
+
+    /**
+     * Writes names added since last commit. Writes single zero byte if there are none
+     */
+    void writeAdded (OutputStream out) {
+        def n = names.size() - committed
+        writeVarInt(out, n)
+        if (!n)
+            return
+
+        writeVarInt(out, committed)
+        def data = new DataOutputStream(out)
+        for (i in committed..<names.size())
+            data.writeUTF(names.get(i))
+        data.flush()
+    }
+
+    /**
+     * Registers names written by {@link #writeAdded}
+     */
+    void readAdded (InputStream inp) {
+        def n = readVarInt(inp)
+        if (!n)
+            return
+
+        def first = readVarInt(inp)
+        def data = new DataInputStream(inp)
+        for (i in 0..<n)
+            put(first + i, data.readUTF())
+    }
+
+    /**
+     * Makes names added so far permanent
+     */
+    void commit () {
+        committed = names.size()
+    }
+
+    /**
+     * Forgets names added since last commit
+     */
+    void rollback () {
+        while (names.size() > committed)
+            ids.remove(names.remove(names.size() - 1))
+    }
+
+    static void writeVarInt (OutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80)
+            value >>>= 7
+        }
+        out.write(value)
+    }
+
+    static int readVarInt (InputStream inp) {
+        int value = 0
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = inp.read()
+            if (b < 0) {
+                throw new EOFException()
+            }
+            value |= (b & 0x7F) << shift
+            if ((b & 0x80) == 0) {
+                return value
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint")
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.util
+
+import java.util.concurrent.Executor
+
+/**
+ * Iterator mapping elements of source iterator concurrently
+ *
+ * Elements are taken from the source in batches. Each batch is mapped by one task and results are stored in
+ * one of fixed number of slots, which are reused for the whole iteration, so besides scheduling of a task
+ * there is no allocation per batch. Number of slots is also the limit of batches in flight, so the source is
+ * never read further ahead than window * batchSize elements (back pressure).
+ *
+ * Results are returned either in order of source elements or in order of completion of batches.
+ *
+ * Iterator itself is not thread safe and supposed to be consumed by one thread.
+ */
+@Typed final class ConcurrentMapIterator<T,R> implements Iterator<R> {
+    private final Iterator<T>    source
+    private final Executor       executor
+    protected final Function1<T,R> op
+    private final boolean        ordered
+
+    private final Batch<T,R> [] slots
+
+    /**
+     * Stack of free slots. Accessed by consumer only
+     */
+    private final int [] free
+    private int freeCount
+
+    /**
+     * Scheduled slots in order of scheduling. Accessed by consumer only
+     */
+    private final int [] scheduled
+    private int scheduledHead, scheduledCount
+
+    /**
+     * Slots in order of completion. Guarded by lock
+     */
+    private final int [] completed
+    private int completedHead, completedCount
+
+    private final Object lock = new Object()
+
+    private Batch<T,R> current
+    private int currentIndex
+
+    ConcurrentMapIterator(Iterator<T> source, Executor executor, boolean ordered, int window, int batchSize, Function1<T,R> op) {
+        this.source = source
+        this.executor = executor
+        this.ordered = ordered
+        this.op = op
+
+        slots     = new Batch[window]
+        free      = new int[window]
+        scheduled = new int[window]
+        completed = new int[window]
+        for (int i = 0; i != window; ++i) {
+            slots[i] = new Batch<T,R>(this, i, batchSize)
+            free[i] = window - 1 - i
+        }
+        freeCount = window
+    }
+
+    boolean hasNext() {
+        if (current && currentIndex < current.size)
+            return true
+
+        releaseCurrent()
+        fill()
+        scheduledCount > 0
+    }
+
+    R next() {
+        if (!hasNext())
+            throw new NoSuchElementException()
+
+        if (!current)
+            current = takeCompleted()
+
+        def res = (R)current.output[currentIndex]
+        current.output[currentIndex++] = null
+        res
+    }
+
+    void remove() {
+        throw new UnsupportedOperationException("remove () is unsupported by the iterator")
+    }
+
+    private void releaseCurrent() {
+        if (current) {
+            free[freeCount++] = current.slot
+            current = null
+        }
+    }
+
+    private void fill() {
+        while (freeCount && source.hasNext()) {
+            def batch = slots[free[--freeCount]]
+            def n = 0
+            def input = batch.input
+            while (n != input.length && source.hasNext())
+                input[n++] = source.next()
+            batch.size = n
+            batch.done = false
+            batch.error = null
+
+            scheduled[(scheduledHead + scheduledCount++) % slots.length] = batch.slot
+            executor.execute batch
+        }
+    }
+
+    private Batch<T,R> takeCompleted() {
+        Batch<T,R> batch
+        synchronized (lock) {
+            if (ordered) {
+                batch = slots[scheduled[scheduledHead]]
+                while (!batch.done)
+                    lock.wait()
+            }
+            else {
+                while (!completedCount)
+                    lock.wait()
+                batch = slots[completed[completedHead]]
+                completedHead = (completedHead + 1) % slots.length
+                completedCount--
+            }
+        }
+
+        if (ordered) {
+            scheduledHead = (scheduledHead + 1) % slots.length
+        }
+        scheduledCount--
+        currentIndex = 0
+
+        if (batch.error) {
+            free[freeCount++] = batch.slot
+            throw batch.error
+        }
+        batch
+    }
+
+    protected final void batchCompleted(Batch<T,R> batch) {
+        synchronized (lock) {
+            batch.done = true
+            if (!ordered) {
+                completed[(completedHead + completedCount++) % slots.length] = batch.slot
+            }
+            lock.notifyAll()
+        }
+    }
+
+    private static final class Batch<T,R> implements Runnable {
+        final ConcurrentMapIterator<T,R> owner
+        final int slot
+
+        final Object [] input
+        final Object [] output
+
+        int size
+        boolean done
+        Throwable error
+
+        Batch(ConcurrentMapIterator<T,R> owner, int slot, int batchSize) {
+            this.owner = owner
+            this.slot  = slot
+            input  = new Object[batchSize]
+            output = new Object[batchSize]
+        }
+
+        void run() {
+            try {
+                def op = owner.op
+                for (int i = 0; i != size; ++i) {
+                    output[i] = op((T)input[i])
+                    input[i] = null
+                }
+            }
+            catch (Throwable t) {
+                error = t
+            }
+            owner.batchCompleted(this)
+        }
+    }
+}
@@ -32,7 +32,12 @@ abstract class Conversions {
    * Constructs the list out of the input iterator.
    */
   static <T> List<T> asList(Iterator<T> self) {
-    def result = []
+    List<T> result = []
+    if (self instanceof Pipeline) {
+      Pipeline.push(self) { T el -> result << el; true }
+      return result
+    }
+
     while (self) {
       result << self.next()
     }
@@ -33,43 +33,7 @@ class Filters extends DefaultGroovyMethodsSupport {
      * @returns iterator containing elements that satisfy the condition.
      */
     static <T> Iterator<T> filter(final Iterator<T> self, final Predicate1<T> condition) {
-        [
-                nextElem: (T) null,
-                nextChecked: false,
-                nextFound: false,
-
-                checkNext: {->
-                    if (!nextChecked) {
-                        nextChecked = true
-
-                        nextFound = self.hasNext()
-                        if (nextFound) {
-                            nextElem = self.next()
-                        }
-                        while (nextFound && !condition.call(nextElem)) {
-                            nextFound = self.hasNext()
-                            if (nextFound) {
-                                nextElem = self.next()
-                            }
-                        }
-                    }
-                },
-
-                hasNext: {-> checkNext(); nextFound },
-
-                next: {->
-                    checkNext()
-                    if (!nextFound)
-                        throw new IllegalStateException("Iterator does not contain more elements")
-
-                    T res = nextElem
-                    nextChecked = false
-                    nextElem = null
-                    res
-                },
-
-                remove: {-> throw new UnsupportedOperationException("remove () is unsupported by the iterator") }
-        ]
+        new Pipeline.Filtering<T>(self, condition)
     }
 
     /**
@@ -93,6 +57,17 @@ class Filters extends DefaultGroovyMethodsSupport {
      * @returns first element that satisfies the condition.
      */
     static <T> T find(Iterator<T> self, Predicate1<T> condition) {
+        if (self instanceof Pipeline) {
+            T[] found = (T[])new Object[1]
+            Pipeline.push(self) { T el ->
+                if (!condition(el))
+                    return true
+                found[0] = el
+                false
+            }
+            return found[0]
+        }
+
         while (self.hasNext()) {
             def el = self.next()
             if (condition.call(el))
@@ -197,6 +172,9 @@ class Filters extends DefaultGroovyMethodsSupport {
      * @returns true if there is at least one element that satisfies the input condition.
      */
     static <T> boolean any(Iterator<T> self, Predicate1<T> condition) {
+        if (self instanceof Pipeline)
+            return !Pipeline.push(self) { T el -> !condition(el) }
+
         while (self.hasNext()) {
             T value = self.next()
             if (condition.call(value)) {
@@ -254,6 +232,9 @@ class Filters extends DefaultGroovyMethodsSupport {
      * @return true if every iteration of the object matches the closure predicate
      */
     static <T> boolean every(Iterator<T> self, Predicate1<T> closure) {
+        if (self instanceof Pipeline)
+            return Pipeline.push(self) { T el -> closure(el) }
+
         for (el in self) {
             if (!closure.call(el))
                 return false
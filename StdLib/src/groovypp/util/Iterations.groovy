@@ -23,6 +23,8 @@ import java.util.concurrent.Executor
 import java.util.concurrent.TimeUnit
 import org.codehaus.groovy.runtime.DefaultGroovyMethods
 import groovypp.concurrent.FHashMap
+import groovypp.concurrent.FVector
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Utility methods to iterate over objects of standard types.
@@ -38,6 +40,16 @@ abstract class Iterations {
      */
     @GrUnit({ assertEquals (8, [1,2,3].iterator().foldLeft(2){ sum, value -> sum + value }) })
     static <T, R> R foldLeft(Iterator<T> self, R init, Function2<T, R, R> op) {
+        if (self instanceof Pipeline) {
+            R[] acc = (R[])new Object[1]
+            acc[0] = init
+            Pipeline.push(self) { T el ->
+                acc[0] = op.call(el, acc[0])
+                true
+            }
+            return acc[0]
+        }
+
         self?.hasNext() ? foldLeft(self, op.call(self.next(), init), op) : init
     }
 
@@ -94,7 +106,9 @@ abstract class Iterations {
      * @param op function to be applied.
      */
     static <T> void each(Iterator<T> self, Function1<T, Object> op) {
-      if(self)
+      if (self instanceof Pipeline)
+        Pipeline.push(self) { T el -> op.call(el); true }
+      else if(self)
         while (self.hasNext()) op.call(self.next())
     }
 
@@ -111,33 +125,141 @@ abstract class Iterations {
      * @return a Collection of the transformed values
      */
     public static <T,R> Collection<R> collect(Iterator<T> self, Collection<R> where = [], Function1<T,R> closure) {
+        if (self instanceof Pipeline) {
+            Pipeline.push(self) { T el -> where << closure(el); true }
+            return where
+        }
+
         for(el in self)
             where << closure(el)
         where
     }
 
     /**
-     * Applies given function to each iterator element. The result of function application is discarded.
+     * Applies given function to each iterator element concurrently. The result of function application is discarded.
+     *
+     * Workers take elements from the iterator in chunks, so the iterator is locked once per chunk and not per element.
+     * Chunk size adapts to cost of the operation: it grows (up to maxChunk) while processing of a chunk is cheap and
+     * shrinks when it is expensive, so workers are still balanced.
+     *
      * @param self input iterator.
+     * @param executor executor to run workers
+     * @param concurrency number of workers (number of available processors by default)
+     * @param maxChunk max number of elements taken by worker at once
      * @param op function to be applied.
+     * @return BindLater, which is bound when all elements processed or failed on first exception thrown by op
      */
-    static <T> BindLater each(Iterator<T> self, Executor executor, int concurrency = 0, Function1<T, Object> op) {
+    static <T> BindLater each(Iterator<T> self, Executor executor, int concurrency = 0, int maxChunk = DEFAULT_MAX_CHUNK, Function1<T, Object> op) {
         if (!concurrency)
             concurrency = Runtime.getRuntime().availableProcessors()
+        if (maxChunk < 1)
+            maxChunk = 1
 
         BindLater.Group result = [concurrency]
-        for (j in 0..concurrency) {
+        for (j in 0..<concurrency) {
             result.attach(executor.callLater {
+                def chunk = new Object[maxChunk]
+                def chunkSize = 1
                 while(!result.isDone()) {
-                    T el
+                    int n = 0
                     synchronized (self) {
-                        if (!self)
-                            break
-
-                        el = self.next()
+                        while (n < chunkSize && self.hasNext())
+                            chunk[n++] = self.next()
+                    }
+                    if (!n)
+                        break
+
+                    def start = System.nanoTime()
+                    for (int i = 0; i != n; ++i) {
+                        def el = (T)chunk[i]
+                        chunk[i] = null
+                        op [el]
                     }
+                    chunkSize = adaptChunk(chunkSize, maxChunk, System.nanoTime() - start)
+                }
+            })
+        }
+        result
+    }
+
+    /**
+     * Applies given function to each list element concurrently. The result of function application is discarded.
+     *
+     * Random access lists are split by index ranges, which workers claim with one atomic increment per chunk,
+     * so no locking involved. Other lists are processed as iterators.
+     */
+    static <T> BindLater each(List<T> self, Executor executor, int concurrency = 0, int maxChunk = DEFAULT_MAX_CHUNK, Function1<T, Object> op) {
+        if (!(self instanceof RandomAccess))
+            return each(self.iterator(), executor, concurrency, maxChunk, op)
+
+        eachRange(self.size(), executor, concurrency, maxChunk) { int from, int to ->
+            for (int i = from; i != to; ++i)
+                op [self.get(i)]
+        }
+    }
+
+    /**
+     * Applies given function to each array element concurrently. The result of function application is discarded.
+     */
+    static <T> BindLater each(T[] self, Executor executor, int concurrency = 0, int maxChunk = DEFAULT_MAX_CHUNK, Function1<T, Object> op) {
+        eachRange(self.length, executor, concurrency, maxChunk) { int from, int to ->
+            for (int i = from; i != to; ++i)
+                op [self[i]]
+        }
+    }
+
+    /**
+     * Applies given function to each vector element concurrently. The result of function application is discarded.
+     */
+    static <T> BindLater each(FVector<T> self, Executor executor, int concurrency = 0, int maxChunk = DEFAULT_MAX_CHUNK, Function1<T, Object> op) {
+        eachRange(self.length, executor, concurrency, maxChunk) { int from, int to ->
+            for (int i = from; i != to; ++i)
+                op [self[i]]
+        }
+    }
+
+    static final int DEFAULT_MAX_CHUNK = 1024
+
+    /**
+     * Processing time of one chunk, which chunk sizing aims to
+     */
+    private static final long TARGET_CHUNK_NANOS = 50000L
+
+    private static int adaptChunk(int chunkSize, int maxChunk, long elapsed) {
+        if (elapsed < TARGET_CHUNK_NANOS) {
+            if (chunkSize < maxChunk)
+                return Math.min(chunkSize << 1, maxChunk)
+        }
+        else {
+            if (elapsed > 4*TARGET_CHUNK_NANOS && chunkSize > 1)
+                return chunkSize >> 1
+        }
+        chunkSize
+    }
+
+    abstract static class RangeOp {
+        abstract void call (int from, int to)
+    }
+
+    private static BindLater eachRange(int size, Executor executor, int concurrency, int maxChunk, RangeOp op) {
+        if (!concurrency)
+            concurrency = Runtime.getRuntime().availableProcessors()
+        if (maxChunk < 1)
+            maxChunk = 1
+
+        AtomicInteger cursor = [0]
+        BindLater.Group result = [concurrency]
+        for (j in 0..<concurrency) {
+            result.attach(executor.callLater {
+                def chunkSize = 1
+                while(!result.isDone()) {
+                    def from = cursor.getAndAdd(chunkSize)
+                    if (from >= size)
+                        break
 
-                    op [el]
+                    def start = System.nanoTime()
+                    op(from, Math.min(from + chunkSize, size))
+                    chunkSize = adaptChunk(chunkSize, maxChunk, System.nanoTime() - start)
                 }
             })
         }
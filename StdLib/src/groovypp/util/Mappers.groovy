@@ -17,8 +17,6 @@
 package groovypp.util
 
 import java.util.concurrent.Executor
-import java.util.concurrent.FutureTask
-import java.util.concurrent.LinkedBlockingQueue
 import org.codehaus.groovy.runtime.DefaultGroovyMethodsSupport
 
 /**
@@ -64,7 +62,7 @@ public class Mappers extends DefaultGroovyMethodsSupport {
    * @return iterator returning the results of application.
    */
   static <T, R> Iterator<R> map(Iterator<T> self, Function1<T, R> op) {
-    [next: { op[self.next()] }, hasNext: { self.hasNext() }, remove: { self.remove() }]
+    new Pipeline.Mapping<T,R>(self, op)
   }
 
   /**
@@ -154,14 +152,7 @@ public class Mappers extends DefaultGroovyMethodsSupport {
    * @return mapped and flattened iterator.
    */
   static <T, R> Iterator<R> flatMap(Iterator<Iterator<T>> self, Function1<T, R> op) {
-    [
-            curr: (Iterator<T>) null,
-            hasNext: {
-              (curr != null && curr.hasNext()) || (self.hasNext() && (curr = self.next()).hasNext())
-            },
-            next: { op.call(curr.next()) },
-            remove: { throw new UnsupportedOperationException("remove() is not supported") }
-    ]
+    new Pipeline.FlatMapping<T,R>(self, op)
   }
 
   /**
@@ -183,68 +174,29 @@ public class Mappers extends DefaultGroovyMethodsSupport {
     flatMap(self, {it})
   }
 
-  private static def NULL = new Object ()  
-
+  /**
+   * Creates iterator returning the results of op application to the elements returned by the original iterator,
+   * where op is applied concurrently by tasks scheduled to given executor.
+   *
+   * @param self original iterator.
+   * @param executor executor to run mapping tasks
+   * @param ordered if true results are returned in order of original elements, otherwise in order of completion
+   * @param maxConcurrentTasks max number of mapping tasks in flight (2 * number of processors at least)
+   * @param batchSize number of elements mapped by one task. Batching amortizes scheduling cost of cheap operations
+   * @param op mapping function.
+   * @return iterator returning the results of application.
+   */
   static <T, R> Iterator<R> mapConcurrently(Iterator<T> self,
                                             Executor executor,
                                             boolean ordered,
                                             int maxConcurrentTasks = 0,
+                                            int batchSize = 1,
                                             Function1<T, R> op) {
     int processors = Runtime.runtime.availableProcessors()
     if (maxConcurrentTasks < processors)
       maxConcurrentTasks = 2 * processors
 
-    if (ordered) {
-      [pending: 0,
-              waiting: new LinkedList<FutureTask<R>>(),
-
-              testPending: {->
-                while (self && pending < maxConcurrentTasks) {
-                  pending++
-                  waiting << op.future(self.next())
-                  executor.execute waiting.last
-                }
-              },
-
-              next: {->
-                def res = waiting.removeFirst().get()
-                pending--
-                testPending()
-                res
-              },
-
-              hasNext: {-> testPending(); pending > 0 },
-
-              remove: {-> throw new UnsupportedOperationException("remove () is unsupported by the iterator") },
-      ]
-    }
-    else {
-      [   pending: 0,
-          ready: new LinkedBlockingQueue<R>(),
-
-          scheduleIfNeeded: {->
-            while (self && pending < maxConcurrentTasks) {
-              pending++
-              def nextElement = self.next()
-              executor.execute {->
-                  def res = op.call(nextElement)
-                  ready << (res ? res : NULL)
-              }
-            }
-          },
-
-          next: {->
-            def res = ready.take()
-            pending--
-            scheduleIfNeeded()
-            res
-          },
-
-          hasNext: {-> scheduleIfNeeded(); pending > 0 },
-
-          remove: {-> throw new UnsupportedOperationException("remove () is unsupported by the iterator") },
-      ]
-    }
+    new ConcurrentMapIterator<T,R>(self, executor, ordered, maxConcurrentTasks, batchSize < 1 ? 1 : batchSize, op)
   }
 
   /**
@@ -254,11 +206,7 @@ public class Mappers extends DefaultGroovyMethodsSupport {
    * @return iterator that iterates over the 'concatenation' of given arguments
    */
   static <T> Iterator<T> followedBy(Iterator<T> self, Iterator<T> follower) {
-    [
-            hasNext: { self.hasNext() || follower.hasNext() },
-            next: { self.hasNext() ? self.next() : follower.next() },
-            remove: {-> throw new UnsupportedOperationException("remove () is unsupported by the iterator") },
-    ]
+    new Pipeline.Concatenation<T>(self, follower)
   }
 
   /**
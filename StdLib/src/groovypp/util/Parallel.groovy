@@ -0,0 +1,458 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.util
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import groovypp.concurrent.FThreadPool
+import groovypp.concurrent.FVector
+
+/**
+ * Parallel operations on arrays, lists and vectors
+ *
+ * Source is split in to index ranges (chunks), which are processed by tasks scheduled to the executor.
+ * Calling thread processes chunks as well and waits only for chunks, which are already being processed by
+ * other threads, so nested parallel operations can't deadlock even if called from a task of the same executor.
+ *
+ * Sources smaller than PARALLEL_THRESHOLD are processed sequentially in calling thread.
+ * Lists, which are not RandomAccess, are copied to an array first.
+ *
+ * Results of order dependent operations (collect, findAll, groupBy, foldLeft) are combined in order of chunks,
+ * so they are the same as results of sequential versions.
+ */
+@Typed abstract class Parallel {
+    static final int PARALLEL_THRESHOLD = 8192
+
+    private static final int MIN_CHUNK = 1024
+    private static final int CHUNKS_PER_THREAD = 4
+
+    private static volatile Executor defaultExecutor
+
+    /**
+     * Executor used when none is given: pool of daemon threads, one per processor, created on first use
+     */
+    static Executor getDefaultExecutor () {
+        def executor = defaultExecutor
+        if (!executor) {
+            synchronized (Parallel) {
+                executor = defaultExecutor
+                if (!executor) {
+                    AtomicInteger threadNumber = [1]
+                    executor = new FThreadPool(Runtime.runtime.availableProcessors(), { Runnable r ->
+                        Thread t = [r, "groovy-parallel-" + threadNumber.getAndIncrement()]
+                        t.daemon = true
+                        t
+                    })
+                    defaultExecutor = executor
+                }
+            }
+        }
+        executor
+    }
+
+    static <T,R> List<R> parallelCollect (List<T> self, Executor executor = null, Function1<T,R> op) {
+        def res = doCollect(indexed(self), executor, op)
+        new ArrayList<R>(Arrays.asList(res))
+    }
+
+    static <T,R> List<R> parallelCollect (FVector<T> self, Executor executor = null, Function1<T,R> op) {
+        def res = doCollect(indexed(self), executor, op)
+        new ArrayList<R>(Arrays.asList(res))
+    }
+
+    static <T,R> R[] parallelCollect (T[] self, Executor executor = null, Function1<T,R> op) {
+        doCollect(indexed(self), executor, op)
+    }
+
+    static <T> List<T> parallelFindAll (List<T> self, Executor executor = null, Predicate1<T> condition) {
+        doFindAll(indexed(self), executor, condition)
+    }
+
+    static <T> List<T> parallelFindAll (FVector<T> self, Executor executor = null, Predicate1<T> condition) {
+        doFindAll(indexed(self), executor, condition)
+    }
+
+    static <T> List<T> parallelFindAll (T[] self, Executor executor = null, Predicate1<T> condition) {
+        doFindAll(indexed(self), executor, condition)
+    }
+
+    static <T,K> Map<K,List<T>> parallelGroupBy (List<T> self, Executor executor = null, Function1<T,K> op) {
+        doGroupBy(indexed(self), executor, op)
+    }
+
+    static <T,K> Map<K,List<T>> parallelGroupBy (FVector<T> self, Executor executor = null, Function1<T,K> op) {
+        doGroupBy(indexed(self), executor, op)
+    }
+
+    static <T,K> Map<K,List<T>> parallelGroupBy (T[] self, Executor executor = null, Function1<T,K> op) {
+        doGroupBy(indexed(self), executor, op)
+    }
+
+    /**
+     * Computes the aggregate of elements. Each chunk is folded starting from init, then results of chunks are
+     * combined left to right, so init should be identity of combiner and combiner should be associative.
+     */
+    static <T,R> R parallelFoldLeft (List<T> self, R init, Executor executor = null, Function2<T,R,R> op, Function2<R,R,R> combiner) {
+        doFoldLeft(indexed(self), init, executor, op, combiner)
+    }
+
+    static <T,R> R parallelFoldLeft (FVector<T> self, R init, Executor executor = null, Function2<T,R,R> op, Function2<R,R,R> combiner) {
+        doFoldLeft(indexed(self), init, executor, op, combiner)
+    }
+
+    static <T,R> R parallelFoldLeft (T[] self, R init, Executor executor = null, Function2<T,R,R> op, Function2<R,R,R> combiner) {
+        doFoldLeft(indexed(self), init, executor, op, combiner)
+    }
+
+    static <T> boolean parallelAny (List<T> self, Executor executor = null, Predicate1<T> condition) {
+        doAny(indexed(self), executor, condition, true)
+    }
+
+    static <T> boolean parallelAny (FVector<T> self, Executor executor = null, Predicate1<T> condition) {
+        doAny(indexed(self), executor, condition, true)
+    }
+
+    static <T> boolean parallelAny (T[] self, Executor executor = null, Predicate1<T> condition) {
+        doAny(indexed(self), executor, condition, true)
+    }
+
+    static <T> boolean parallelEvery (List<T> self, Executor executor = null, Predicate1<T> condition) {
+        !doAny(indexed(self), executor, condition, false)
+    }
+
+    static <T> boolean parallelEvery (FVector<T> self, Executor executor = null, Predicate1<T> condition) {
+        !doAny(indexed(self), executor, condition, false)
+    }
+
+    static <T> boolean parallelEvery (T[] self, Executor executor = null, Predicate1<T> condition) {
+        !doAny(indexed(self), executor, condition, false)
+    }
+
+    /**
+     * Sorts array in place: chunks are sorted in parallel and then merged pairwise, pairs of each round in parallel
+     */
+    static <T> T[] parallelSort (T[] self, Executor executor = null, Comparator<T> comparator) {
+        def buffer = new Object[self.length]
+        mergeSort(self.length, executor, { int from, int to -> Arrays.sort(self, from, to, comparator) }) { boolean toBuffer, int lo, int mid, int hi ->
+            Object[] src = toBuffer ? self : buffer, dst = toBuffer ? buffer : self
+            int i = lo, j = mid, k = lo
+            while (i < mid && j < hi)
+                dst[k++] = comparator.compare((T)src[j], (T)src[i]) < 0 ? src[j++] : src[i++]
+            System.arraycopy(src, i, dst, k, mid - i)
+            System.arraycopy(src, j, dst, k + mid - i, hi - j)
+        }
+        self
+    }
+
+    static <T extends Comparable> T[] parallelSort (T[] self, Executor executor = null) {
+        parallelSort(self, executor, { T a, T b -> a.compareTo(b) })
+    }
+
+    /**
+     * Sorts list in place. Elements are copied to an array, sorted and written back
+     */
+    static <T> List<T> parallelSort (List<T> self, Executor executor = null, Comparator<T> comparator) {
+        def array = (T[])self.toArray()
+        parallelSort(array, executor, comparator)
+        def it = self.listIterator()
+        for (el in array) {
+            it.next()
+            it.set(el)
+        }
+        self
+    }
+
+    static int[] parallelSort (int[] self, Executor executor = null) {
+        def buffer = new int[self.length]
+        mergeSort(self.length, executor, { int from, int to -> Arrays.sort(self, from, to) }) { boolean toBuffer, int lo, int mid, int hi ->
+            int[] src = toBuffer ? self : buffer, dst = toBuffer ? buffer : self
+            int i = lo, j = mid, k = lo
+            while (i < mid && j < hi)
+                dst[k++] = src[j] < src[i] ? src[j++] : src[i++]
+            System.arraycopy(src, i, dst, k, mid - i)
+            System.arraycopy(src, j, dst, k + mid - i, hi - j)
+        }
+        self
+    }
+
+    static long[] parallelSort (long[] self, Executor executor = null) {
+        def buffer = new long[self.length]
+        mergeSort(self.length, executor, { int from, int to -> Arrays.sort(self, from, to) }) { boolean toBuffer, int lo, int mid, int hi ->
+            long[] src = toBuffer ? self : buffer, dst = toBuffer ? buffer : self
+            int i = lo, j = mid, k = lo
+            while (i < mid && j < hi)
+                dst[k++] = src[j] < src[i] ? src[j++] : src[i++]
+            System.arraycopy(src, i, dst, k, mid - i)
+            System.arraycopy(src, j, dst, k + mid - i, hi - j)
+        }
+        self
+    }
+
+    static double[] parallelSort (double[] self, Executor executor = null) {
+        def buffer = new double[self.length]
+        mergeSort(self.length, executor, { int from, int to -> Arrays.sort(self, from, to) }) { boolean toBuffer, int lo, int mid, int hi ->
+            double[] src = toBuffer ? self : buffer, dst = toBuffer ? buffer : self
+            int i = lo, j = mid, k = lo
+            while (i < mid && j < hi)
+                dst[k++] = Double.compare(src[j], src[i]) < 0 ? src[j++] : src[i++]
+            System.arraycopy(src, i, dst, k, mid - i)
+            System.arraycopy(src, j, dst, k + mid - i, hi - j)
+        }
+        self
+    }
+
+    /**
+     * Random access view of the source
+     */
+    abstract static class Indexed<T> {
+        abstract int size ()
+
+        abstract T getAt (int index)
+    }
+
+    abstract static class RangeOp {
+        abstract void call (int chunk, int from, int to)
+    }
+
+    abstract static class SortOp {
+        abstract void call (int from, int to)
+    }
+
+    abstract static class MergeOp {
+        abstract void call (boolean toBuffer, int lo, int mid, int hi)
+    }
+
+    private static <T> Indexed<T> indexed (T[] array) {
+        [size: { array.length }, getAt: { int index -> array[index] }]
+    }
+
+    private static <T> Indexed<T> indexed (List<T> list) {
+        if (!(list instanceof RandomAccess))
+            return indexed((T[])list.toArray())
+
+        [size: { list.size() }, getAt: { int index -> list.get(index) }]
+    }
+
+    private static <T> Indexed<T> indexed (FVector<T> vector) {
+        [size: { vector.length }, getAt: { int index -> vector[index] }]
+    }
+
+    private static <T,R> R[] doCollect (Indexed<T> self, Executor executor, Function1<T,R> op) {
+        def res = (R[]) new Object[self.size()]
+        forEachChunk(self.size(), executor) { int chunk, int from, int to ->
+            for (int i = from; i != to; ++i)
+                res[i] = op[self[i]]
+        }
+        res
+    }
+
+    private static <T> List<T> doFindAll (Indexed<T> self, Executor executor, Predicate1<T> condition) {
+        def parts = (List<T>[]) new List[chunkCount(self.size())]
+        forEachChunk(self.size(), executor) { int chunk, int from, int to ->
+            List<T> part = []
+            for (int i = from; i != to; ++i) {
+                def el = self[i]
+                if (condition[el])
+                    part << el
+            }
+            parts[chunk] = part
+        }
+
+        List<T> res = []
+        for (part in parts)
+            if (part)
+                res.addAll(part)
+        res
+    }
+
+    private static <T,K> Map<K,List<T>> doGroupBy (Indexed<T> self, Executor executor, Function1<T,K> op) {
+        def parts = (Map<K,List<T>>[]) new Map[chunkCount(self.size())]
+        forEachChunk(self.size(), executor) { int chunk, int from, int to ->
+            Map<K,List<T>> part = new LinkedHashMap<K,List<T>>()
+            for (int i = from; i != to; ++i) {
+                def el = self[i]
+                def key = op[el]
+                def list = part.get(key)
+                if (list == null) {
+                    list = new ArrayList<T>()
+                    part.put(key, list)
+                }
+                list << el
+            }
+            parts[chunk] = part
+        }
+
+        Map<K,List<T>> res = new LinkedHashMap<K,List<T>>()
+        for (part in parts) {
+            if (part) {
+                for (e in part.entrySet()) {
+                    def list = res.get(e.key)
+                    if (list == null)
+                        res.put(e.key, e.value)
+                    else
+                        list.addAll(e.value)
+                }
+            }
+        }
+        res
+    }
+
+    private static <T,R> R doFoldLeft (Indexed<T> self, R init, Executor executor, Function2<T,R,R> op, Function2<R,R,R> combiner) {
+        def n = chunkCount(self.size())
+        if (!n)
+            return init
+
+        def parts = (R[]) new Object[n]
+        forEachChunk(self.size(), executor) { int chunk, int from, int to ->
+            def acc = init
+            for (int i = from; i != to; ++i)
+                acc = op(self[i], acc)
+            parts[chunk] = acc
+        }
+
+        def res = parts[0]
+        for (int i = 1; i < n; ++i)
+            res = combiner(res, parts[i])
+        res
+    }
+
+    /**
+     * @return true if condition(el) == expected for some element
+     */
+    private static <T> boolean doAny (Indexed<T> self, Executor executor, Predicate1<T> condition, boolean expected) {
+        AtomicInteger found = [0]
+        forEachChunk(self.size(), executor) { int chunk, int from, int to ->
+            for (int i = from; i != to && !found.get(); ++i) {
+                if (condition[self[i]] == expected) {
+                    found.set(1)
+                    break
+                }
+            }
+        }
+        found.get() != 0
+    }
+
+    private static int chunkCount (int size) {
+        if (size < PARALLEL_THRESHOLD)
+            return size ? 1 : 0
+
+        Math.min(CHUNKS_PER_THREAD * Runtime.runtime.availableProcessors(), (size + MIN_CHUNK - 1).intdiv(MIN_CHUNK))
+    }
+
+    /**
+     * Splits [0,size) in to chunkCount(size) ranges and processes them in parallel
+     */
+    private static void forEachChunk (int size, Executor executor, RangeOp op) {
+        def n = chunkCount(size)
+        runTasks(n, executor) { int chunk ->
+            op(chunk, (int)((long)size * chunk / n), (int)((long)size * (chunk + 1) / n))
+        }
+    }
+
+    private static void mergeSort (int size, Executor executor, SortOp sort, MergeOp merge) {
+        def n = chunkCount(size)
+        if (!n)
+            return
+
+        int[] bounds = new int[n+1]
+        for (int i = 0; i <= n; ++i)
+            bounds[i] = (int)((long)size * i / n)
+
+        runTasks(n, executor) { int chunk ->
+            sort(bounds[chunk], bounds[chunk+1])
+        }
+
+        // merge runs pairwise until one run left, alternating between array and buffer
+        boolean toBuffer = true
+        while (n > 1) {
+            def src = bounds, runs = n, pairs = n >> 1, round = toBuffer
+            runTasks((n + 1) >> 1, executor) { int pair ->
+                int lo = src[2*pair]
+                if (pair < pairs)
+                    merge(round, lo, src[2*pair+1], src[2*pair+2])
+                else
+                    // odd run is just copied
+                    merge(round, lo, src[runs], src[runs])
+            }
+
+            n = (n + 1) >> 1
+            bounds = new int[n+1]
+            for (int i = 0; i < n; ++i)
+                bounds[i] = src[2*i]
+            bounds[n] = size
+            toBuffer = !toBuffer
+        }
+
+        if (!toBuffer) {
+            // last round wrote to the buffer, so copy it back
+            merge(false, 0, size, size)
+        }
+    }
+
+    abstract static class TaskOp {
+        abstract void call (int task)
+    }
+
+    /**
+     * Runs n tasks. Calling thread takes part and waits only for tasks already started by helper threads
+     */
+    private static void runTasks (int n, Executor executor, TaskOp op) {
+        if (n <= 1) {
+            if (n)
+                op(0)
+            return
+        }
+
+        if (executor == null)
+            executor = getDefaultExecutor()
+
+        AtomicInteger next = [0]
+        AtomicReference<Throwable> failure = []
+        CountDownLatch done = [n]
+        Runnable worker = {
+            for (;;) {
+                def task = next.getAndIncrement()
+                if (task >= n)
+                    return
+
+                try {
+                    if (!failure.get())
+                        op(task)
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t)
+                }
+                finally {
+                    done.countDown()
+                }
+            }
+        }
+
+        def helpers = Math.min(n, Runtime.runtime.availableProcessors()) - 1
+        for (int i = 0; i < helpers; ++i)
+            executor.execute worker
+        worker.run()
+        done.await()
+
+        def t = failure.get()
+        if (t)
+            throw t
+    }
+}
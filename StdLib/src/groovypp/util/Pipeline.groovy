@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.util
+
+/**
+ * Lazy iterator, which is a stage of filter/map/flatMap/followedBy pipeline
+ *
+ * Besides usual pull iteration the pipeline can push its elements to a sink. Pushing a stage pushes its source
+ * with a sink composed of stage operation and downstream sink, so the whole chain is fused in to one loop over
+ * the original source without hasNext ()/next () pair per stage and element. Terminal operations
+ * (each, collect, foldLeft, asList, find, any, every) push when they are given a pipeline and
+ * pull otherwise, so pipeline escaping to the code expecting plain iterator still works.
+ *
+ * Pull and push may be mixed: elements already looked ahead by hasNext () are pushed first.
+ */
+@Typed abstract class Pipeline<T> implements Iterator<T> {
+
+    /**
+     * Receiver of pushed elements
+     */
+    abstract static class Sink<T> {
+        /**
+         * @return false to stop pushing
+         */
+        abstract boolean call (T element)
+    }
+
+    /**
+     * Pushes remaining elements to the sink
+     *
+     * @return false if sink stopped pushing
+     */
+    abstract boolean push (Sink<T> sink)
+
+    void remove() {
+        throw new UnsupportedOperationException("remove () is unsupported by the iterator")
+    }
+
+    /**
+     * Pushes remaining elements of any iterator to the sink. Pipelines push themselves, other iterators are pulled
+     */
+    static <T> boolean push (Iterator<T> source, Sink<T> sink) {
+        if (source instanceof Pipeline)
+            return ((Pipeline<T>)source).push(sink)
+
+        while (source.hasNext())
+            if (!sink(source.next()))
+                return false
+        true
+    }
+
+    static final class Filtering<T> extends Pipeline<T> {
+        private final Iterator<T>   source
+        private final Predicate1<T> condition
+
+        private T       nextElem
+        private boolean nextChecked, nextFound
+
+        Filtering (Iterator<T> source, Predicate1<T> condition) {
+            this.source = source
+            this.condition = condition
+        }
+
+        boolean hasNext() {
+            if (!nextChecked) {
+                nextChecked = true
+                nextFound = false
+                while (source.hasNext()) {
+                    nextElem = source.next()
+                    if (condition(nextElem)) {
+                        nextFound = true
+                        break
+                    }
+                }
+            }
+            nextFound
+        }
+
+        T next() {
+            if (!hasNext())
+                throw new IllegalStateException("Iterator does not contain more elements")
+
+            T res = nextElem
+            nextChecked = false
+            nextElem = null
+            res
+        }
+
+        boolean push(Sink<T> sink) {
+            if (nextChecked) {
+                nextChecked = false
+                if (nextFound) {
+                    T el = nextElem
+                    nextElem = null
+                    if (!sink(el))
+                        return false
+                }
+            }
+
+            def accept = condition
+            Pipeline.push(source) { T el -> !accept(el) || sink(el) }
+        }
+    }
+
+    static final class Mapping<T,R> extends Pipeline<R> {
+        private final Iterator<T>    source
+        private final Function1<T,R> op
+
+        Mapping (Iterator<T> source, Function1<T,R> op) {
+            this.source = source
+            this.op = op
+        }
+
+        boolean hasNext() {
+            source.hasNext()
+        }
+
+        R next() {
+            op(source.next())
+        }
+
+        void remove() {
+            source.remove()
+        }
+
+        boolean push(Sink<R> sink) {
+            def f = op
+            Pipeline.push(source) { T el -> sink(f(el)) }
+        }
+    }
+
+    static final class FlatMapping<T,R> extends Pipeline<R> {
+        private final Iterator<Iterator<T>> source
+        private final Function1<T,R>        op
+
+        private Iterator<T> curr
+
+        FlatMapping (Iterator<Iterator<T>> source, Function1<T,R> op) {
+            this.source = source
+            this.op = op
+        }
+
+        boolean hasNext() {
+            while (curr == null || !curr.hasNext()) {
+                if (!source.hasNext())
+                    return false
+                curr = source.next()
+            }
+            true
+        }
+
+        R next() {
+            if (!hasNext())
+                throw new NoSuchElementException()
+            op(curr.next())
+        }
+
+        boolean push(Sink<R> sink) {
+            def f = op
+            Sink<T> inner = { T el -> sink(f(el)) }
+            if (curr != null && !Pipeline.push(curr, inner))
+                return false
+            curr = null
+
+            // remember current inner iterator, so elements left after stop are still available for pull
+            Pipeline.push(source) { Iterator<T> iter ->
+                curr = iter
+                Pipeline.push(iter, inner)
+            }
+        }
+    }
+
+    static final class Concatenation<T> extends Pipeline<T> {
+        private final Iterator<T> first, second
+
+        Concatenation (Iterator<T> first, Iterator<T> second) {
+            this.first = first
+            this.second = second
+        }
+
+        boolean hasNext() {
+            first.hasNext() || second.hasNext()
+        }
+
+        T next() {
+            first.hasNext() ? first.next() : second.next()
+        }
+
+        boolean push(Sink<T> sink) {
+            Pipeline.push(first, sink) && Pipeline.push(second, sink)
+        }
+    }
+}
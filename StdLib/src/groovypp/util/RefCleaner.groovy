@@ -84,7 +84,7 @@ abstract class RefValueMap<K,V,W extends MapValueRef<K,V>> extends ConcurrentHas
         while(true) {
             def prevRef = putIfAbsent(key, newRef)
             if (prevRef) {
-                def prev // @todo = prevRef.get()
+                def prev = ((java.lang.ref.Reference<V>)prevRef).get()
                 if (prev)
                     return prev
 
@@ -99,7 +99,7 @@ abstract class RefValueMap<K,V,W extends MapValueRef<K,V>> extends ConcurrentHas
 }
 
 class WeakValueMap<K,V> extends RefValueMap<K,V,WeakValueMap.WeakValue<K,V>> {
-    final static class WeakValue<K,V> extends WeakReference<V> implements MapValueRef<K,V> {
+    static class WeakValue<K,V> extends WeakReference<V> implements MapValueRef<K,V> {
         WeakValue(WeakValueMap<K,V> map, K key, V value) {
             super(value, RefCleaner.queue)
             this.map = map
@@ -20,9 +20,16 @@ package groovypp.util
 
     private final ClassLoader classLoader;
 
-    SerialInputStream(InputStream inp, ClassLoader classLoader = null) throws IOException {
+    private final ClassDictionary dictionary
+
+    /**
+     * @param dictionary resolves ids of classes sent by SerialOutputStream using dictionary.
+     * Names should be registered before the message is read, see {@link ClassDictionary#readAdded}
+     */
+    SerialInputStream(InputStream inp, ClassLoader classLoader = null, ClassDictionary dictionary = null) throws IOException {
         super(inp);
         this.classLoader = classLoader;
+        this.dictionary = dictionary
     }
 
     @Override
@@ -46,6 +53,13 @@ package groovypp.util
             String className = readUTF()
             Class<?> clazz = loadClass(className)
             return ObjectStreamClass.lookup(clazz)
+        case 2:
+            int knownId = ClassDictionary.readVarInt(this)
+            String knownName = dictionary?.nameOf(knownId)
+            if (knownName == null) {
+                throw new StreamCorruptedException("Unknown class id: $knownId")
+            }
+            return ObjectStreamClass.lookup(loadClass(knownName))
         default:
             throw new StreamCorruptedException("Unexpected class descriptor type: $type")
         }
@@ -18,8 +18,15 @@ package groovypp.util
 
 @Typed class SerialOutputStream extends ObjectOutputStream {
 
-    SerialOutputStream(OutputStream out) throws IOException {
+    private final ClassDictionary dictionary
+
+    /**
+     * @param dictionary if not null, only ids of classes are written. Names met first time are added to
+     * the dictionary and should reach the reader before the message, see {@link ClassDictionary#writeAdded}
+     */
+    SerialOutputStream(OutputStream out, ClassDictionary dictionary = null) throws IOException {
         super(out)
+        this.dictionary = dictionary
     }
 
     @Override
@@ -33,9 +40,13 @@ package groovypp.util
         if (clazz.isPrimitive() || clazz.isArray()) {
             write(0)
             super.writeClassDescriptor(desc)
-        } else {
+        } else if (dictionary == null) {
             write(1)
             writeUTF(desc.name)
+        } else {
+            def id = dictionary.idOf(desc.name)
+            write(2)
+            ClassDictionary.writeVarInt(this, id >= 0 ? id : dictionary.add(desc.name))
         }
     }
 }
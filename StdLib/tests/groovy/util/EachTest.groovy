@@ -156,4 +156,25 @@ u()
             GroovyTestCase.assertEquals res, [1:2, 2:2, 3:2]
         """
     }
+
+    void testConcurrentIterator () {
+        testWithFixedPool {
+            java.util.concurrent.atomic.AtomicLong sum = [0L]
+            ((List<Integer>)(0..<100000)).iterator().each(pool, 4) { int it ->
+                sum.addAndGet(it)
+            }.get()
+            assertEquals 4999950000L, sum.get()
+        }
+    }
+
+    void testConcurrentList () {
+        testWithFixedPool {
+            java.util.concurrent.atomic.AtomicLong sum = [0L]
+            List<Integer> list = new ArrayList<Integer>((List<Integer>)(0..<100000))
+            list.each(pool, 4) { int it ->
+                sum.addAndGet(it)
+            }.get()
+            assertEquals 4999950000L, sum.get()
+        }
+    }
 }
\ No newline at end of file
@@ -56,6 +56,22 @@ class MappersTest extends GroovyShellTestCase {
         assertEquals (["0", "1", "2"], res )
     }
 
+    void testFusedPipeline () {
+        def words = ["a b", "c", "", "d e f"].iterator()
+        def pipeline = words.map { it.split(" ").iterator() }.flatten().filter { it != "" }.map { it.toUpperCase() }.followedBy(["Z"].iterator())
+        assertTrue pipeline instanceof groovypp.util.Pipeline
+
+        // pull first element, then push the rest
+        assertTrue pipeline.hasNext()
+        assertEquals "A", pipeline.next()
+        assertEquals (["B", "C", "D", "E", "F", "Z"], pipeline.asList())
+
+        def source = (1..10).iterator().filter { it % 2 == 0 }
+        assertEquals 4, source.find { it > 3 }
+        assertEquals 6, source.next()
+        assertEquals 18, source.foldLeft(0) { int el, int sum -> sum + el }
+    }
+
   void testProduct () {
         assertEquals((List<Pair>)[[0,2], [0,3], [1,2], [1,3]], (0..1).product(2..3).asList())
     }
@@ -95,6 +111,21 @@ class MappersTest extends GroovyShellTestCase {
         assertEquals ((1..100001), res)
     }
 
+    void testMapConcurrentlyBatched () {
+        ExecutorService pool = Executors.newFixedThreadPool(10)
+        def res = (0..100000).iterator ().mapConcurrently (pool, true, 16, 100) {
+            it & 1 ? null : it
+        }.toList ()
+        assertEquals ((0..100000).map{ it & 1 ? null : it }.asList(), res)
+
+        res = (0..100000).iterator ().mapConcurrently (pool, false, 16, 100) {
+            it + 1
+        }.toList ()
+        res.sort()
+        assertEquals ((1..100001), res)
+        pool.shutdown()
+    }
+
     @Typed(TypePolicy.MIXED)
     void testConcurrentlyMixed () {
         ExecutorService pool = Executors.newFixedThreadPool(10)
@@ -22,12 +22,25 @@ import java.util.concurrent.CountDownLatch
 
 import java.util.concurrent.TimeUnit
 import groovypp.concurrent.FThreadPool
+import groovypp.concurrent.ExecutionMetrics
 import java.util.concurrent.Executor
 import groovypp.channels.MessageChannel
 import groovypp.channels.MultiplexorChannel
+import groovypp.channels.PartitionedChannel
+import java.util.concurrent.ConcurrentHashMap
+import groovypp.channels.CachingSelectorChannel
+import groovypp.channels.TopicChannel
 import static groovypp.channels.Channels.channel
+import static groovypp.channels.Channels.executingChannel
 
 import groovypp.channels.ExecutingChannel
+import groovypp.channels.MailboxLimit
+import groovypp.channels.CorrelationTable
+import groovypp.channels.WindowChannel
+import groovypp.concurrent.BindLater
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.RejectedExecutionException
 
 @Typed class MessageChannelTest extends GroovyTestCase {
 
@@ -57,6 +70,81 @@ import groovypp.channels.ExecutingChannel
         assertEquals(["0", "2", "4", "6", "8"], one)
     }
 
+    void testCountWindows () {
+        List<Integer> sums = []
+        def c = channel{ int m -> sums << m }.window(3) { a, b -> a + b }
+        for (i in 0..<10)
+            c << i
+        assertEquals([3, 12, 21], sums)
+
+        List<Integer> sliding = []
+        c = channel{ int m -> sliding << m }.slidingWindow(4, 2) { a, b -> a + b }
+        for (i in 0..<8)
+            c << i
+        assertEquals([1, 6, 14, 22], sliding)
+
+        List<List<String>> batches = []
+        MessageChannel<String> batching = channel{ List<String> m -> batches << m }.window(2)
+        for (s in ["a", "b", "c", "d", "e"])
+            batching << s
+        assertEquals([["a", "b"], ["c", "d"]], batches)
+
+        // receiver owns forwarded window, even if it consists of single pane kept for next windows
+        List<List<String>> slidingBatches = []
+        def slidingBatching = WindowChannel.byCount(4, 2, new WindowChannel.Collecting<String>())
+        slidingBatching.forwardTo = channel{ List<String> m ->
+            slidingBatches << new ArrayList<String>(m)
+            m << "x"
+        }
+        for (s in ["a", "b", "c", "d"])
+            slidingBatching << s
+        assertEquals([["a", "b"], ["a", "b", "c", "d"]], slidingBatches)
+    }
+
+    void testTimeWindows () {
+        CopyOnWriteArrayList<Map<Integer,Integer>> windows = []
+        def c = channel{ Map<Integer,Integer> m -> windows << m }.reduceByKey(100, TimeUnit.MILLISECONDS, { Integer m -> m & 1 }) { a, b -> a + b }
+        for (i in 0..<1000)
+            c << i
+        Thread.sleep 300
+        c.close()
+
+        // messages may be split between neighbour windows, but none is lost
+        assertFalse windows.empty
+        int even = 0, odd = 0
+        for (w in windows) {
+            even += w[0] ?: 0
+            odd  += w[1] ?: 0
+        }
+        assertEquals 249500, even
+        assertEquals 250000, odd
+
+        CopyOnWriteArrayList<Long> totals = []
+        def counter = channel{ long m -> totals << m }.slidingWindow(200, 100, TimeUnit.MILLISECONDS) { a, b -> a + b }
+        try {
+            for (i in 0..<10)
+                counter << 1L
+            Thread.sleep 450
+
+            // every pane takes part in two windows
+            long sum = 0
+            for (t in totals)
+                sum += t
+            assertEquals 20L, sum
+
+            // timer stopped after windows became empty, next message starts it again
+            counter << 1L
+            Thread.sleep 450
+            sum = 0
+            for (t in totals)
+                sum += t
+            assertEquals 22L, sum
+        }
+        finally {
+            counter.close()
+        }
+    }
+
     void testBefore () {
         Reference one = [0], two = [-1], count = [0]
         MessageChannel c = { int m -> one += m + count; count = count+1 }
@@ -111,6 +199,144 @@ import groovypp.channels.ExecutingChannel
         assertEquals (-7, count.get ())
     }
 
+    void testTopics () {
+        TopicChannel<List<String>> topics = [messageTopic: { msg -> msg[0] }]
+        List all = [], msft = [], nasdaq = []
+        def allChannel = channel { msg -> all << msg[1] }
+        def msftChannel = channel { msg -> msft << msg[1] }
+        topics.subscribe("quotes.#", allChannel)
+              .subscribe("#.msft", allChannel)
+              .subscribe("quotes.*.msft", msftChannel)
+              .subscribe("quotes.nasdaq.*", channel { msg -> nasdaq << msg[1] })
+
+        topics << ["quotes.nasdaq.msft", "1"]
+        topics << ["quotes.nyse.ibm", "2"]
+        topics << ["quotes", "3"]
+        topics << ["trades.nasdaq.msft", "4"]
+        topics << ["quotes.nasdaq.msft.bid", "5"]
+
+        assertEquals(["1", "2", "3", "4", "5"], all)
+        assertEquals(["1"], msft)
+        assertEquals(["1"], nasdaq)
+        assertEquals 2, topics.subscribers("quotes.nyse.msft").size()
+
+        topics.unsubscribe("quotes.*.msft", msftChannel)
+        topics << ["quotes.nyse.msft", "6"]
+        assertEquals(["1"], msft)
+        assertEquals(["1", "2", "3", "4", "5", "6"], all)
+    }
+
+    void testCachingSelector () {
+        Map<Integer, List> received = [:]
+        Reference created = [0]
+        CachingSelectorChannel<Integer, Integer> selector = [
+            messageKey: { msg -> msg % 10 },
+            createRoute: { key ->
+                created = created + 1
+                received[key] = []
+                channel { msg -> received[key] << msg }
+            },
+            maxCacheSize: 5
+        ]
+
+        for (i in 0..<5)
+            for (j in 0..<5)
+                selector << j + 10*i
+        assertEquals 5, created.get()
+        assertEquals([0, 10, 20, 30, 40], received[0])
+
+        // cache is at its limit: new route survives eviction caused by its own insertion
+        for (i in 5..<10) {
+            selector << i
+            selector << i + 10
+        }
+        assertEquals 10, created.get()
+        assertEquals([5, 15], received[5])
+        assertTrue selector.cacheSize <= 5
+
+        selector.invalidateAll()
+        assertEquals 0, selector.cacheSize
+
+        shouldFail(IllegalArgumentException) {
+            selector.maxCacheSize = 0
+        }
+    }
+
+    void testPartitioned () {
+        testWithFixedPool {
+            def keys = 10, n = 3000
+            def cdl = new CountDownLatch(n)
+            ConcurrentHashMap<Integer, List<Integer>> received = []
+            for (k in 0..<keys)
+                received[k] = new CopyOnWriteArrayList<Integer>()
+
+            PartitionedChannel<Integer, Integer> partitioned = [
+                executor: pool,
+                messageKey: { msg -> msg % keys },
+                onMessage: { msg ->
+                    received[msg % keys] << msg
+                    cdl.countDown()
+                }
+            ]
+            partitioned.partitionCount = 4
+
+            for (i in 0..<n) {
+                if (i == 1000)
+                    partitioned.partitionCount = 7
+                if (i == 2000)
+                    partitioned.partitionCount = 2
+                partitioned << i
+            }
+
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+            assertEquals 2, partitioned.partitionCount
+            for (k in 0..<keys)
+                assertEquals((0..<n).findAll { it % keys == k }, received[k])
+        }
+    }
+
+    static class Square extends MessageChannel.ReplyRequiringMessage {
+        int value
+    }
+
+    void testRequestTimeout () {
+        testWithFixedPool {
+            def n = 1000
+            def server = channel { Square msg ->
+                if (msg.value >= 0)
+                    msg.reply(msg.value * msg.value)
+                else if (msg.value == -1)
+                    msg.replyFailure(new IllegalArgumentException())
+                // other negative values are never answered
+            }.async(pool)
+
+            List<BindLater<Integer>> replies = []
+            for (i in 0..<n)
+                replies << MessageChannel.request(server, new Square(value:i), 5000L)
+            for (i in 0..<n)
+                assertEquals i*i, replies[i].get(10, TimeUnit.SECONDS)
+
+            try {
+                MessageChannel.request(server, new Square(value:-1), 5000L).get(10, TimeUnit.SECONDS)
+                fail()
+            }
+            catch (ExecutionException e) {
+                assertTrue e.cause instanceof IllegalArgumentException
+            }
+
+            def start = System.currentTimeMillis()
+            try {
+                MessageChannel.request(server, new Square(value:-2), 50L).get(10, TimeUnit.SECONDS)
+                fail()
+            }
+            catch (ExecutionException e) {
+                assertTrue e.cause instanceof TimeoutException
+            }
+            assertTrue System.currentTimeMillis() - start < 5000
+            assertEquals 0, CorrelationTable.instance.pendingCount
+        }
+    }
+
     void testExecutor () {
         testWithFixedPool {
             def cdl = new CountDownLatch(100)
@@ -149,6 +375,167 @@ import groovypp.channels.ExecutingChannel
         }
     }
 
+    void testLinkedMailboxFanIn () {
+        testWithFixedPool(8) {
+            for (fair in [false, true]) {
+                int nProducers = 8, n = 10000
+                CountDownLatch cdl = [nProducers * n]
+                int[] last = new int[nProducers]
+                Reference<Boolean> ordered = [true]
+                ExecutingChannel channel = [
+                    onMessage: { msg ->
+                        if (msg instanceof List) {
+                            int producer = (Integer)((List)msg)[0], seq = (Integer)((List)msg)[1]
+                            if (last[producer] + 1 != seq)
+                                ordered.set(false)
+                            last[producer] = seq
+                            cdl.countDown()
+                        }
+                        else
+                            super.onMessage(msg)
+                    },
+                    executor:pool, runFair:fair, linkedMailbox:true]
+
+                for (p in 0..<nProducers) {
+                    pool.execute {
+                        for (i in 1..n)
+                            channel << [p, i]
+                    }
+                }
+
+                assertTrue cdl.await(30, TimeUnit.SECONDS)
+                assertTrue ordered.get()
+            }
+        }
+    }
+
+    void testBatches () {
+        testWithFixedPool {
+            CopyOnWriteArrayList sizes = []
+            CopyOnWriteArrayList results = []
+            def cdl = new CountDownLatch(1000)
+            def channel = executingChannel(pool, 100, 50L) { List<Integer> batch ->
+                sizes << batch.size()
+                results.addAll(batch)
+                for (m in batch)
+                    cdl.countDown()
+            }
+
+            for (i in 0..<1000)
+                channel << i
+
+            assertTrue cdl.await(10,TimeUnit.SECONDS)
+            assertEquals 0..<1000, results
+            for (size in sizes)
+                assertTrue((Integer)size <= 100)
+            assertTrue sizes.size() < 1000
+        }
+    }
+
+    void testLingerNotEndedByPreviousOne () {
+        testWithFixedPool {
+            def full = new CountDownLatch(1), single = new CountDownLatch(1)
+            def channel = executingChannel(pool, 3, 200L) { List<Integer> batch ->
+                if (batch.size() == 3)
+                    full.countDown()
+                else
+                    single.countDown()
+            }
+
+            // first linger ends when batch is full, long before its timer task fires
+            for (i in 0..<3)
+                channel << i
+            assertTrue full.await(10, TimeUnit.SECONDS)
+
+            Thread.sleep 100
+            def start = System.currentTimeMillis()
+            channel << 3
+            assertTrue single.await(10, TimeUnit.SECONDS)
+            // timer task of the first linger fires in the middle of the second one, but does not end it
+            assertTrue System.currentTimeMillis() - start >= 150
+        }
+    }
+
+    void testBoundedMailbox () {
+        for (linked in [false, true]) {
+            List<Runnable> tasks = []
+            Executor manual = { Runnable r -> tasks << r }
+            List received = [], dropped = []
+            ExecutingChannel channel = [
+                onMessage: { msg -> received << msg },
+                onDropped: { msg -> dropped << msg },
+                executor:manual, linkedMailbox:linked, limit:new MailboxLimit(2, MailboxLimit.Policy.DROP_OLDEST)]
+
+            // commands are not limited and not dropped
+            channel.schedule { received << "cmd" }
+            channel << 1
+            channel << 2
+            channel << 3
+            assertTrue channel.full
+            assertFalse channel.offer(4)
+            // mailbox stays bounded while consumer is stalled. Command at the head is kept and not counted
+            assertEquals([1], dropped)
+
+            def available = channel.whenAvailable()
+            assertFalse available.done
+
+            while (tasks)
+                tasks.remove(0).run()
+
+            assertEquals(["cmd", 2, 3], received)
+            assertEquals([1], dropped)
+            assertTrue available.done
+            assertFalse channel.full
+        }
+
+        List<Runnable> tasks = []
+        Executor manual = { Runnable r -> tasks << r }
+        // limit is shared, but each channel counts its own messages
+        def shared = new MailboxLimit(1)
+        ExecutingChannel rejecting = [executor:manual, limit:shared], other = [executor:manual, limit:shared]
+        rejecting << 1
+        shouldFail(RejectedExecutionException) {
+            rejecting << 2
+        }
+        other << 1
+        assertTrue other.full
+    }
+
+    void testMetrics () {
+        FThreadPool pool = []
+        pool.metrics = ExecutionMetrics.create("test-pool", false)
+        ExecutingChannel channel = [executor:pool, metrics:ExecutionMetrics.create("test-channel")]
+        try {
+            def cdl = new CountDownLatch(100)
+            for (i in 0..<100)
+                channel.schedule {
+                    Thread.sleep 1
+                    cdl.countDown()
+                }
+            assertTrue cdl.await(10,TimeUnit.SECONDS)
+
+            // the last command is recorded after it counted down the latch
+            def metrics = ExecutionMetrics.get("test-channel")
+            assertSame channel.metrics, metrics
+            assertEquals 100L, metrics.submitted
+            def deadline = System.currentTimeMillis() + 10000L
+            while ((metrics.processingTime.count != 100L || metrics.queueDepth != 0L) && System.currentTimeMillis() < deadline)
+                Thread.sleep 10
+            assertEquals 0L, metrics.queueDepth
+            assertEquals 100L, metrics.processingTime.count
+            assertTrue metrics.processingTime.getPercentile(50) >= 1000000L
+
+            assertTrue pool.metrics.submitted > 0L
+            assertTrue pool.shutdownNow().empty
+            assertTrue pool.awaitTermination(10,TimeUnit.SECONDS)
+        }
+        finally {
+            pool.metrics.close()
+            channel.metrics.close()
+        }
+        assertNull ExecutionMetrics.get("test-channel")
+    }
+
     void testRingFair () {
         testWithFixedPool {
           runRing(pool,true)
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovy.util
+
+@Typed
+public class ParallelTest extends GroovyTestCase {
+
+    void testCollectAndFindAll () {
+        testWithFixedPool(4) {
+            List<Integer> list = []
+            for (i in 0..<100000)
+                list << i
+
+            def res = list.parallelCollect(pool) { it * 2 }
+            assertEquals 100000, res.size()
+            for (i in 0..<100000)
+                assertEquals i * 2, res[i]
+
+            def even = list.parallelFindAll(pool) { it % 2 == 0 }
+            assertEquals 50000, even.size()
+            assertEquals 99998, even[-1]
+
+            def groups = list.parallelGroupBy(pool) { it % 3 }
+            assertEquals 33334, groups[0].size()
+            assertEquals 3, groups[0][1]
+
+            assertEquals 4999950000L, list.parallelFoldLeft(0L, pool, { Integer el, Long acc -> acc + el }) { Long a, Long b -> a + b }
+
+            assertTrue  list.parallelAny(pool) { it == 77777 }
+            assertFalse list.parallelEvery(pool) { it < 99999 }
+        }
+    }
+
+    void testSort () {
+        def random = new Random(17)
+        int[] ints = new int[100003]
+        Integer[] boxed = new Integer[ints.length]
+        for (i in 0..<ints.length) {
+            ints[i] = random.nextInt()
+            boxed[i] = ints[i]
+        }
+
+        ints.parallelSort()
+        boxed.parallelSort { Integer a, Integer b -> b.compareTo(a) }
+
+        for (i in 1..<ints.length) {
+            assertTrue ints[i-1] <= ints[i]
+            assertTrue boxed[i-1] >= boxed[i]
+        }
+        assertEquals ints[0], boxed[-1]
+    }
+}
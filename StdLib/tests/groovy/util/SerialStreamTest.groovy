@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovy.util
+
+import groovypp.util.ClassDictionary
+import groovypp.util.SerialInputStream
+import groovypp.util.SerialOutputStream
+
+@Typed class SerialStreamTest extends GroovyTestCase {
+
+    static class Point implements Serializable {
+        int x, y
+    }
+
+    void testClassDictionary () {
+        def bos = new ByteArrayOutputStream()
+        def dictionary = new ClassDictionary()
+        def out = new SerialOutputStream(bos, dictionary)
+
+        List<Integer> sizes = []
+        List<byte[]> added = []
+        for (i in 0..<3) {
+            def start = bos.size()
+            out.reset()
+            out.writeObject(new Point(x:i, y:-i))
+            out.flush()
+            sizes << bos.size() - start
+
+            def names = new ByteArrayOutputStream()
+            dictionary.writeAdded(names)
+            dictionary.commit()
+            added << names.toByteArray()
+        }
+
+        // class name is sent only once, stream contains just ids
+        assertEquals sizes[0], sizes[1]
+        assertTrue added[0].length > 1
+        assertEquals 1, added[1].length
+        assertEquals 1, added[2].length
+
+        // reader learns names before it reads messages
+        def inDictionary = new ClassDictionary()
+        for (names in added)
+            inDictionary.readAdded(new ByteArrayInputStream(names))
+        assertEquals dictionary.size(), inDictionary.size()
+
+        def inp = new SerialInputStream(new ByteArrayInputStream(bos.toByteArray()), getClass().classLoader, inDictionary)
+        for (i in 0..<3) {
+            def p = (Point)inp.readObject()
+            assertEquals i, p.x
+            assertEquals(-i, p.y)
+        }
+    }
+
+    void testRollback () {
+        def dictionary = new ClassDictionary()
+        dictionary.add("a")
+        dictionary.commit()
+        dictionary.add("b")
+        dictionary.rollback()
+
+        assertEquals 1, dictionary.size()
+        assertEquals 0, dictionary.idOf("a")
+        assertEquals(-1, dictionary.idOf("b"))
+        assertEquals 1, dictionary.add("c")
+    }
+}
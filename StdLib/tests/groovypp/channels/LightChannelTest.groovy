@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@Typed
+public class LightChannelTest extends GroovyTestCase {
+
+    static class Counter extends LightChannel<Integer> {
+        CountDownLatch cdl
+        int sum
+
+        protected void onMessage(Integer message) {
+            if (message < 0)
+                throw new IllegalArgumentException()
+            sum += message
+            cdl?.countDown()
+        }
+    }
+
+    void testMessages () {
+        testWithFixedPool {
+            ChannelGroup group = [pool, 3]
+            def n = 1000
+            List<Counter> counters = []
+            for (i in 0..<10)
+                counters << new Counter(group:group, cdl:new CountDownLatch(n))
+            for (i in 0..<n)
+                for (c in counters)
+                    c << 1
+
+            for (c in counters) {
+                assertTrue c.cdl.await(10, TimeUnit.SECONDS)
+                assertEquals n, c.sum
+            }
+        }
+    }
+
+    static class Supervisor extends Counter {
+        final CountDownLatch crashes = [1]
+        volatile LightChannel crashed
+
+        protected void onChildCrashed(LightChannel child, Throwable cause) {
+            crashed = child
+            crashes.countDown()
+        }
+    }
+
+    void testSupervision () {
+        testWithFixedPool {
+            ChannelGroup group = [pool]
+            Counter owner = [group:group], child = [group:group]
+            assertNull child.owner
+            assertTrue owner.children.empty
+
+            owner.link(child)
+            assertSame owner, child.owner
+            assertEquals([child], owner.children.asList())
+            shouldFail(IllegalStateException) {
+                new Counter(group:group).link(child)
+            }
+
+            owner.unlink(child)
+            assertNull child.owner
+
+            Supervisor supervisor = [group:group]
+            supervisor.link(child)
+            child << -1
+            assertTrue supervisor.crashes.await(10, TimeUnit.SECONDS)
+            assertSame child, supervisor.crashed
+        }
+    }
+}
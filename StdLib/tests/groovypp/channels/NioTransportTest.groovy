@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.CopyOnWriteArrayList
+import static groovypp.channels.RemoteLeasesTest.waitFor
+
+@Typed
+public class NioTransportTest extends GroovyTestCase {
+
+    void testLoopback () {
+        testWithFixedPool {
+            def n = 10000
+            def received = new CopyOnWriteArrayList()
+            def cdl = new CountDownLatch(n)
+
+            NioTransport server = [pool]
+            server.mainActor = { msg ->
+                received << msg
+                cdl.countDown()
+            }
+            def address = server.listen(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0))
+
+            NioTransport client = [pool]
+            try {
+                def connection = client.connect(address).get(10, TimeUnit.SECONDS)
+                assertEquals server.hostId, connection.foreignHost
+                assertSame connection, client.getConnection(server.hostId)
+
+                def remote = connection.getRemoteBySerialId(RemoteMessageChannel.IOContext.MAIN_ACTOR_ID)
+                for (i in 0..<n)
+                    remote << "message $i".toString()
+
+                assertTrue cdl.await(30, TimeUnit.SECONDS)
+                assertEquals "message 0", received[0]
+                assertEquals "message ${n-1}".toString(), received[n-1]
+            }
+            finally {
+                client.close()
+                server.close()
+            }
+        }
+    }
+
+    void testSlowPeerStopsTakingMessages () {
+        // the only pool thread stays free while the connection waits for the socket
+        testWithFixedPool(1) {
+            def server = ServerSocketChannel.open()
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0))
+
+            NioTransport client = [pool]
+            client.maxOutputBuffer = 64*1024
+            client.mailboxLimit = new MailboxLimit(100)
+            try {
+                def handshake = client.connect((InetSocketAddress)server.socket().localSocketAddress)
+
+                // peer sends its id and never reads
+                def peer = server.accept()
+                def hello = ByteBuffer.allocate(20)
+                hello.putInt(16).putLong(1L).putLong(2L).flip()
+                peer.write(hello)
+                peer.configureBlocking(false)
+
+                def connection = handshake.get(10, TimeUnit.SECONDS)
+                def remote = connection.getRemoteBySerialId(RemoteMessageChannel.IOContext.MAIN_ACTOR_ID)
+                def payload = "x" * (16*1024)
+
+                def deadline = System.currentTimeMillis() + 30000L
+                while (!connection.full && System.currentTimeMillis() < deadline)
+                    remote << payload
+                assertTrue connection.full
+
+                def free = new CountDownLatch(1)
+                pool.execute { free.countDown() }
+                assertTrue free.await(10, TimeUnit.SECONDS)
+
+                // reading resumes the connection
+                def sink = ByteBuffer.allocate(1024*1024)
+                assertTrue waitFor(30000L) {
+                    sink.clear()
+                    peer.read(sink)
+                    !connection.full
+                }
+                peer.close()
+            }
+            finally {
+                client.close()
+                server.close()
+            }
+        }
+    }
+
+    void testSimultaneousConnect () {
+        testWithFixedPool {
+            def received = new CopyOnWriteArrayList()
+            NioTransport a = [pool]
+            NioTransport b = [pool]
+            a.mainActor = { msg -> received << msg }
+            b.mainActor = { msg -> received << msg }
+            def loopback = InetAddress.getByName("127.0.0.1")
+            def addressA = a.listen(new InetSocketAddress(loopback, 0))
+            def addressB = b.listen(new InetSocketAddress(loopback, 0))
+            try {
+                def ab = a.connect(addressB)
+                def ba = b.connect(addressA)
+                ab.get(10, TimeUnit.SECONDS)
+                ba.get(10, TimeUnit.SECONDS)
+
+                // both hosts keep the connection opened by the one with smaller id
+                def aInitiates = a.hostId.compareTo(b.hostId) < 0
+                assertTrue waitFor(10000L) {
+                    def fromA = a.getConnection(b.hostId)
+                    def fromB = b.getConnection(a.hostId)
+                    fromA && fromB && !fromA.closed && !fromB.closed && fromA.initiator == aInitiates && fromB.initiator == !aInitiates
+                }
+
+                a.getConnection(b.hostId).getRemoteBySerialId(RemoteMessageChannel.IOContext.MAIN_ACTOR_ID) << "to b"
+                b.getConnection(a.hostId).getRemoteBySerialId(RemoteMessageChannel.IOContext.MAIN_ACTOR_ID) << "to a"
+                assertTrue waitFor(10000L) { received.size() == 2 }
+                assertEquals(["to a", "to b"], received.sort())
+            }
+            finally {
+                a.close()
+                b.close()
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import static groovypp.channels.Channels.channel
+
+@Typed
+public class RemoteFramesTest extends GroovyTestCase {
+
+    static class Good implements Serializable {
+        int value
+    }
+
+    static class Bad implements Serializable {
+        private void readObject(ObjectInputStream inp) {
+            throw new InvalidObjectException("Can not be read")
+        }
+    }
+
+    /**
+     * Field a is read before field b, so reading fails before class of b is met
+     */
+    static class Holder implements Serializable {
+        Bad  a
+        Good b
+    }
+
+    private static RemoteMessageChannel.ForwardMessageReceived forward (Object message) {
+        new RemoteMessageChannel.ForwardMessageReceived(forwardTo:RemoteMessageChannel.IOContext.MAIN_ACTOR_ID, message:message)
+    }
+
+    void testFrameFailingToDeserialize () {
+        testWithFixedPool {
+            RemoteLeasesTest.LoopbackContext a = [], b = []
+            RemoteLeasesTest.connect(a, b, pool, 60000L)
+
+            CopyOnWriteArrayList<Integer> received = []
+            def cdl = new CountDownLatch(2)
+            b.mainActor = channel { msg ->
+                received << (msg instanceof Holder ? ((Holder)msg).b.value : ((Good)msg).value)
+                cdl.countDown()
+            }
+
+            // the first frame introduces Holder, Bad and Good, but reading fails at Bad
+            shouldFail(InvalidObjectException) {
+                a.sendOverWire(forward(new Holder(a:new Bad(), b:new Good(value:1))))
+            }
+
+            // reader learned all names of the failed frame
+            a.sendOverWire(forward(new Good(value:2)))
+            a.sendOverWire(forward(new Holder(b:new Good(value:3))))
+
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+            assertEquals([2, 3], received)
+
+            a.close()
+            b.close()
+        }
+    }
+}
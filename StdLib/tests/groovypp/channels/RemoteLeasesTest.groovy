@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import static groovypp.channels.Channels.channel
+
+@Typed
+public class RemoteLeasesTest extends GroovyTestCase {
+
+    static class LoopbackContext extends RemoteMessageChannel.IOContext {
+        LoopbackContext peer
+
+        void sendBytes(byte[] bytes) {
+            peer.receiveBytes(bytes)
+        }
+    }
+
+    static void connect (LoopbackContext a, LoopbackContext b, Executor executor, long leaseMillis) {
+        a.peer = b
+        b.peer = a
+        a.myHost = b.foreignHost = UUID.randomUUID()
+        b.myHost = a.foreignHost = UUID.randomUUID()
+        a.executor = b.executor = executor
+        a.leaseMillis = b.leaseMillis = leaseMillis
+    }
+
+    static boolean waitFor (long millis, Function0<Boolean> condition) {
+        def deadline = System.currentTimeMillis() + millis
+        while (!condition()) {
+            if (System.currentTimeMillis() > deadline)
+                return false
+            Thread.sleep 10
+        }
+        true
+    }
+
+    void testForget () {
+        testWithFixedPool {
+            LoopbackContext a = [], b = []
+            connect(a, b, pool, 60000L)
+
+            CopyOnWriteArrayList<Object> received = []
+            def cdl = new CountDownLatch(3)
+            b.mainActor = channel { msg ->
+                received << msg
+                cdl.countDown()
+            }
+
+            // two references to the channel are counted by one proxy,
+            // the last message makes reader of b drop references to objects of previous ones
+            def exported = channel { msg -> }
+            def main = a.getRemoteBySerialId(RemoteMessageChannel.IOContext.MAIN_ACTOR_ID)
+            main << exported
+            main << exported
+            main << "done"
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+
+            def id = ((RemoteMessageChannel)received[0]).serialId
+            assertSame received[0], received[1]
+            assertSame exported, a.getBySerialId(id)
+
+            // proxy collected by garbage collector forgets both references
+            received.clear()
+            assertTrue waitFor(10000L) {
+                System.gc()
+                a.getBySerialId(id) == null
+            }
+
+            // released channel is exported again under new id
+            assertFalse id == a.makeRemoteable(exported).serialID
+
+            a.close()
+            b.close()
+        }
+    }
+
+    void testLeases () {
+        testWithFixedPool {
+            LoopbackContext a = [], b = []
+            connect(a, b, pool, 2000L)
+
+            def used = channel { msg -> }, unused = channel { msg -> }
+            def usedId = a.makeRemoteable(used).serialID
+            def unusedId = a.makeRemoteable(unused).serialID
+
+            def proxy = b.resolveRemote(usedId)
+
+            assertTrue waitFor(10000L) { a.getBySerialId(unusedId) == null }
+            // longer than lease, proxy in use keeps renewing it
+            Thread.sleep 3000
+            assertSame used, a.getBySerialId(usedId)
+            assertNotNull proxy
+
+            a.close()
+            b.close()
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.channels
+
+import java.lang.ref.WeakReference
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+@Typed
+public class RingBufferChannelTest extends GroovyTestCase {
+
+    void testDependentStages () {
+        testWithFixedPool(4) {
+            def n = 100000
+            def cdl = new CountDownLatch(n)
+            RingBufferChannel<long[]> ring = [executor:pool, bufferSize:64, singleProducer:true, waitStrategy:RingBufferChannel.WaitStrategy.BUSY_SPIN]
+            def decode = ring.addStage { long[] event ->
+                event[1] = event[0] * 2
+            }
+            List<Long> priced = []
+            ring.addStage([decode]) { long[] event ->
+                // decode stage already processed the event
+                if (event[1] == event[0] * 2)
+                    priced << event[0]
+                cdl.countDown()
+            }
+
+            try {
+                for (i in 0..<n) {
+                    long[] event = [i, 0L]
+                    ring << event
+                }
+                assertTrue cdl.await(10, TimeUnit.SECONDS)
+                assertEquals n, priced.size()
+                for (i in 0..<n)
+                    assertEquals i, priced[i]
+            }
+            finally {
+                ring.stop()
+            }
+        }
+    }
+
+    void testMultipleProducers () {
+        testWithFixedPool(6) {
+            def producers = 4, n = 50000
+            def cdl = new CountDownLatch(producers * n)
+            AtomicLong sum = []
+            RingBufferChannel<Integer> ring = [
+                executor: pool,
+                bufferSize: 256,
+                waitStrategy: RingBufferChannel.WaitStrategy.PARK,
+                onMessage: { msg ->
+                    sum.addAndGet(msg)
+                    cdl.countDown()
+                }
+            ]
+            ring.start()
+
+            try {
+                for (p in 0..<producers) {
+                    pool.execute {
+                        List<Integer> batch = []
+                        for (i in 0..<n) {
+                            batch << i
+                            if (batch.size() == 100) {
+                                ring.publish(batch)
+                                batch.clear()
+                            }
+                        }
+                        ring.publish(batch)
+                    }
+                }
+                assertTrue cdl.await(10, TimeUnit.SECONDS)
+                long expected = 0
+                for (i in 0..<n)
+                    expected += i
+                assertEquals producers * expected, sum.get()
+            }
+            finally {
+                ring.stop()
+            }
+        }
+    }
+
+    void testStop () {
+        testWithFixedPool(4) {
+            def block = new CountDownLatch(1)
+            RingBufferChannel<Integer> ring = [executor:pool, bufferSize:4, singleProducer:true,
+                                               onMessage: { msg -> block.await() }]
+            try {
+                for (i in 0..<4)
+                    ring << i
+
+                // ring is full, because the only stage is stuck with first message
+                def failed = new CountDownLatch(1)
+                pool.execute {
+                    try {
+                        ring << 4
+                    }
+                    catch (RejectedExecutionException e) {
+                        failed.countDown()
+                    }
+                }
+                Thread.sleep 50
+                ring.stop()
+                assertTrue failed.await(10, TimeUnit.SECONDS)
+
+                shouldFail(RejectedExecutionException) {
+                    ring << 5
+                }
+            }
+            finally {
+                block.countDown()
+            }
+        }
+    }
+
+    void testProcessedSlotsCleared () {
+        testWithFixedPool(2) {
+            def processed = new CountDownLatch(1)
+            RingBufferChannel<Object> ring = [executor:pool, bufferSize:16, singleProducer:true,
+                                              onMessage: { msg -> processed.countDown() }]
+            try {
+                def message = new Object()
+                WeakReference<Object> ref = [message]
+                ring << message
+                message = null
+                assertTrue processed.await(10, TimeUnit.SECONDS)
+
+                def deadline = System.currentTimeMillis() + 10000L
+                while (ref.get() != null && System.currentTimeMillis() < deadline) {
+                    System.gc()
+                    Thread.sleep 10
+                }
+                assertNull ref.get()
+            }
+            finally {
+                ring.stop()
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import static groovypp.channels.Channels.channel
+
+@Typed
+public class AffinityExecutorTest extends GroovyTestCase {
+
+    void testChannelStaysOnWorker () {
+        AffinityExecutor executor = [4]
+        try {
+            def n = 10000
+            def cdl = new CountDownLatch(n)
+            ConcurrentHashMap<Thread, Boolean> threads = []
+            List<Integer> received = []
+            def actor = channel { int msg ->
+                threads.put(Thread.currentThread(), true)
+                received << msg
+                cdl.countDown()
+            }.async(executor, true)
+
+            for (i in 0..<n)
+                actor << i
+
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+            assertEquals 1, threads.size()
+            assertEquals((0..<n).asList(), received)
+        }
+        finally {
+            executor.shutdown()
+            assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+        }
+    }
+
+    void testStealingUnderImbalance () {
+        AffinityExecutor executor = [2, 2]
+        try {
+            def n = 20
+            def cdl = new CountDownLatch(n)
+            ConcurrentHashMap<Thread, Boolean> threads = []
+            Runnable task = {
+                threads.put(Thread.currentThread(), true)
+                Thread.sleep 10
+                cdl.countDown()
+            }
+
+            // the same task always has the same home worker
+            for (i in 0..<n)
+                executor.execute task
+
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+            assertEquals 2, threads.size()
+            long steals = 0
+            for (s in executor.stealCounts)
+                steals += s
+            assertTrue steals > 0
+        }
+        finally {
+            executor.shutdown()
+            assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+        }
+    }
+
+    void testResubmittedTaskIsNotStolen () {
+        AffinityExecutor executor = [2]
+        try {
+            def n = 1000
+            def done = new CountDownLatch(1)
+            AtomicInteger runs = []
+            Runnable[] self = new Runnable[1]
+            Runnable task = {
+                if (runs.incrementAndGet() < n)
+                    executor.execute self[0]
+                else
+                    done.countDown()
+            }
+            self[0] = task
+            executor.execute task
+
+            assertTrue done.await(10, TimeUnit.SECONDS)
+            assertEquals 0L, executor.stealCounts[0] + executor.stealCounts[1]
+        }
+        finally {
+            executor.shutdown()
+            assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+        }
+    }
+
+    void testNoTaskWaitsBehindBlockedOne () {
+        AffinityExecutor executor = [2]
+        try {
+            def unblocked = new CountDownLatch(1)
+            AtomicInteger runs = []
+            Runnable[] self = new Runnable[1]
+            Runnable task = {
+                if (runs.incrementAndGet() == 1) {
+                    // goes to the queue of this worker, which stays blocked until the task runs again
+                    executor.execute self[0]
+                    unblocked.await(10, TimeUnit.SECONDS)
+                }
+                else {
+                    unblocked.countDown()
+                }
+            }
+            self[0] = task
+            executor.execute task
+
+            assertTrue unblocked.await(5, TimeUnit.SECONDS)
+            assertEquals 2, runs.get()
+        }
+        finally {
+            executor.shutdown()
+            assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+        }
+    }
+}
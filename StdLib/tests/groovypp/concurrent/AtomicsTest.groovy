@@ -103,4 +103,57 @@ public class AtomicsTest extends GroovyTestCase {
         cdl.await()
         assertEquals (n, map.get().size ())
     }
+
+    void testMapWithBackoff () {
+        AtomicReference<FHashMap<Integer,Integer>> map = [FHashMap.emptyMap]
+
+        CountDownLatch cdl = [n]
+        for(i in 0..<n) {
+            pool.callLater {
+                map.applyWithBackoff { m -> m.put(i,i) }
+                i
+            }.whenBound { future ->
+                cdl.countDown()
+            }
+        }
+
+        cdl.await()
+        assertEquals (n, map.get().size ())
+    }
+
+    void testCombiningAtom () {
+        CombiningAtom<FHashMap<Integer,Integer>> atom = [FHashMap.emptyMap]
+
+        CountDownLatch cdl = [n]
+        for(i in 0..<n) {
+            pool.callLater {
+                atom { m -> m.put(i,i) }
+                i
+            }.whenBound { future ->
+                cdl.countDown()
+            }
+        }
+
+        cdl.await()
+        assertEquals (n, atom.get().size ())
+    }
+
+    void testStripedAtom () {
+        StripedLongAtom counter = []
+
+        CountDownLatch cdl = [n]
+        for(i in 0..<n) {
+            pool.callLater {
+                counter.increment()
+                i
+            }.whenBound { future ->
+                cdl.countDown()
+            }
+        }
+
+        cdl.await()
+        assertEquals ((long)n, counter.sum ())
+        assertEquals ((long)n, counter.sumThenReset ())
+        assertEquals (0L, counter.sum ())
+    }
 }
\ No newline at end of file
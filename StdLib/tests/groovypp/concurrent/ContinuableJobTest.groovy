@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+@Typed
+public class ContinuableJobTest extends GroovyTestCase {
+
+    void testWaitsForSubJobs () {
+        testWithFixedPool(4) {
+            AtomicInteger counter = [0]
+            def job = ContinuableJob.job(pool) {
+                for (i in 0..<100) {
+                    ContinuableJob.job(pool) {
+                        Thread.sleep 1
+                        counter.incrementAndGet()
+                    }
+                }
+                "done"
+            }
+            assertEquals "done", job.get(10, TimeUnit.SECONDS)
+            assertEquals 100, counter.get()
+        }
+    }
+
+    void testFailureCancelsSiblings () {
+        testWithFixedPool(4) {
+            def job = ContinuableJob.job(pool) {
+                ContinuableJob.job(pool) {
+                    throw new IllegalArgumentException()
+                }
+                ContinuableJob.job(pool) {
+                    while (true) {
+                        ContinuableJob.current.checkCancelled()
+                        Thread.sleep 1
+                    }
+                }
+            }
+            try {
+                job.get(10, TimeUnit.SECONDS)
+                fail()
+            }
+            catch (ExecutionException e) {
+                assertTrue e.cause instanceof IllegalArgumentException
+            }
+        }
+    }
+
+    void testFirstSuccess () {
+        testWithFixedPool(4) {
+            ContinuableJob<String> first = {
+                ContinuableJob.job(pool) { throw new IllegalStateException() }
+                ContinuableJob.job(pool) { "fast" }
+                ContinuableJob.job(pool) {
+                    Thread.sleep 5000
+                    "slow"
+                }
+                null
+            }
+            first.scope = ContinuableJob.FIRST_SUCCESS
+            assertEquals "fast", ContinuableJob.job(pool, first).get(10, TimeUnit.SECONDS)
+        }
+    }
+
+    void testDeadline () {
+        testWithFixedPool(4) {
+            ContinuableJob<String> slow = {
+                ContinuableJob.job(pool) {
+                    while (true) {
+                        ContinuableJob.current.checkCancelled()
+                        Thread.sleep 1
+                    }
+                }
+                "never"
+            }
+            slow.withTimeout(100, TimeUnit.MILLISECONDS)
+            try {
+                ContinuableJob.job(pool, slow).get(10, TimeUnit.SECONDS)
+                fail()
+            }
+            catch (ExecutionException e) {
+                assertTrue e.cause instanceof TimeoutException
+            }
+        }
+    }
+}
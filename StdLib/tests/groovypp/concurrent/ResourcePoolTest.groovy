@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+@Typed
+public class ResourcePoolTest extends GroovyTestCase {
+
+    void testLazyGrowth () {
+        testWithFixedPool(10) {
+            AtomicInteger created = []
+            ResourcePool<String> rpool = [
+                executor: pool,
+                maxSize: 3,
+                initResources: { [] },
+                createResource: { "r" + created.incrementAndGet() }
+            ]
+
+            def release = new CountDownLatch(1)
+            def started = new CountDownLatch(3)
+            List<BindLater<String>> busy = []
+            for (i in 0..<3) {
+                ResourcePool.Action<String,String> action = {
+                    started.countDown()
+                    release.await()
+                    it
+                }
+                busy << rpool.execute(action)
+            }
+            assertTrue started.await(10, TimeUnit.SECONDS)
+            assertEquals 3, rpool.size
+
+            // pool reached maxSize, so next action waits for released resource
+            ResourcePool.Action<String,String> waiting = { it }
+            rpool.execute(waiting)
+            assertFalse waiting.done
+
+            release.countDown()
+            assertNotNull waiting.get(10, TimeUnit.SECONDS)
+            for (b in busy)
+                b.get(10, TimeUnit.SECONDS)
+            assertEquals 3, created.get()
+            assertEquals 3, rpool.size
+        }
+    }
+
+    void testTimeout () {
+        testWithFixedPool(4) {
+            ResourcePool<String> rpool = [
+                executor: pool,
+                initResources: { ["a"] }
+            ]
+
+            def release = new CountDownLatch(1)
+            ResourcePool.Action<String,String> slow = {
+                release.await()
+                it
+            }
+            rpool.execute(slow)
+
+            ResourcePool.Action<String,String> timed = { it }
+            rpool.execute(timed, 50, TimeUnit.MILLISECONDS)
+            try {
+                timed.get(10, TimeUnit.SECONDS)
+                fail()
+            }
+            catch (ExecutionException e) {
+                assertTrue e.cause instanceof TimeoutException
+            }
+
+            release.countDown()
+            assertEquals "a", slow.get(10, TimeUnit.SECONDS)
+
+            // completed action does not time out later
+            ResourcePool.Action<String,String> fast = { it.toUpperCase() }
+            rpool.execute(fast, 50, TimeUnit.MILLISECONDS)
+            assertEquals "A", fast.get(10, TimeUnit.SECONDS)
+            Thread.sleep 100
+            assertEquals "A", fast.get()
+        }
+    }
+
+    void testThreadAffinity () {
+        testWithFixedPool(2) {
+            AtomicInteger created = []
+            ResourcePool<String> rpool = [
+                executor: pool,
+                threadAffinity: true,
+                maxSize: 5,
+                initResources: { ["a"] },
+                createResource: { "r" + created.incrementAndGet() }
+            ]
+
+            // resource released by executor thread is cached there, but is stolen instead of growing the pool
+            for (i in 0..<20) {
+                ResourcePool.Action<String,String> action = { it }
+                assertEquals "a", rpool.execute(action).get(10, TimeUnit.SECONDS)
+            }
+            assertEquals 0, created.get()
+            assertEquals 1, rpool.size
+        }
+    }
+}
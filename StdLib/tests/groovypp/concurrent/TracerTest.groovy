@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import groovypp.channels.ExecutingChannel
+
+@Typed
+public class TracerTest extends GroovyTestCase {
+
+    static class CountingTracer extends Tracer {
+        final AtomicInteger messages = [], tasks = [], futures = [], casRetries = []
+
+        void messageProcessed(Object span, Object channel, Object message, long durationNanos) { messages.incrementAndGet() }
+
+        void taskExecuted(Object span, Object executor, Object task, long durationNanos) { tasks.incrementAndGet() }
+
+        void futureCompleted(BindLater future, int outcome, long latencyNanos) { futures.incrementAndGet() }
+
+        void casRetried(Object target, int retries, long durationNanos) { casRetries.incrementAndGet() }
+    }
+
+    void testTracing () {
+        CountingTracer tracer = []
+        Tracer.current = tracer
+        try {
+            FThreadPool pool = []
+            def cdl = new CountDownLatch(10)
+            ExecutingChannel channel = [executor:pool]
+            for (i in 0..<10)
+                channel.schedule { cdl.countDown() }
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+
+            BindLater<String> future = []
+            future.set("done")
+
+            pool.shutdown()
+            assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+
+            assertEquals 10, tracer.messages.get()
+            assertTrue tracer.tasks.get() > 0
+            assertTrue tracer.futures.get() >= 1
+        }
+        finally {
+            Tracer.current = null
+        }
+    }
+
+    void testFlightRecorder () {
+        if (!FlightRecorderTracer.isSupported())
+            return
+
+        assertTrue Tracer.enableFlightRecorder()
+        def recordingClass = Class.forName("jdk.jfr.Recording")
+        def recording = recordingClass.newInstance()
+        def file = File.createTempFile("tracer", ".jfr")
+        try {
+            // nothing is measured while no recording runs
+            assertNull Tracer.active(Tracer.MESSAGES)
+
+            recordingClass.getMethod("enable", String).invoke(recording, "groovypp.MessageProcessed")
+            recordingClass.getMethod("start").invoke(recording)
+            assertNotNull Tracer.active(Tracer.MESSAGES)
+
+            FThreadPool pool = []
+            def cdl = new CountDownLatch(10)
+            ExecutingChannel channel = [executor:pool]
+            for (i in 0..<10)
+                channel.schedule { cdl.countDown() }
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+            pool.shutdown()
+            assertTrue pool.awaitTermination(10, TimeUnit.SECONDS)
+
+            recordingClass.getMethod("stop").invoke(recording)
+            def path = File.getMethod("toPath").invoke(file)
+            recordingClass.getMethod("dump", Class.forName("java.nio.file.Path")).invoke(recording, path)
+
+            def events = (List)Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Class.forName("java.nio.file.Path")).invoke(null, path)
+            int spans = 0
+            for (event in events) {
+                def type = event.getClass().getMethod("getEventType").invoke(event)
+                if (type.getClass().getMethod("getName").invoke(type) == "groovypp.MessageProcessed") {
+                    def duration = event.getClass().getMethod("getDuration").invoke(event)
+                    assertFalse((Boolean)duration.getClass().getMethod("isNegative").invoke(duration))
+                    spans++
+                }
+            }
+            assertEquals 10, spans
+        }
+        finally {
+            ((FlightRecorderTracer)Tracer.current).close()
+            Tracer.current = null
+            recordingClass.getMethod("close").invoke(recording)
+            file.delete()
+        }
+    }
+}
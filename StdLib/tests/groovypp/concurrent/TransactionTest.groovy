@@ -0,0 +1,94 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import java.util.concurrent.CountDownLatch
+
+@Typed
+public class TransactionTest extends GroovyTestCase {
+
+    void testTransfers () {
+        testWithFixedPool(10) {
+            int nAccounts = 10, n = 10000
+            List<Ref<Integer>> accounts = []
+            for (i in 0..<nAccounts)
+                accounts << new Ref<Integer>(1000)
+
+            CountDownLatch cdl = [n]
+            for (i in 0..<n) {
+                pool.execute {
+                    def from = accounts[i % nAccounts], to = accounts[(i * 7 + 3) % nAccounts]
+                    transaction {
+                        from.alter { it - 1 }
+                        to.alter { it + 1 }
+                    }
+                    cdl.countDown()
+                }
+            }
+            cdl.await()
+
+            def total = transaction {
+                def sum = 0
+                for (a in accounts)
+                    sum += a.get()
+                sum
+            }
+            assertEquals 1000 * nAccounts, total
+        }
+    }
+
+    void testCommute () {
+        testWithFixedPool(10) {
+            Ref<FHashMap<Integer,Integer>> registry = [FHashMap.emptyMap]
+            Ref<Integer> counter = [0]
+
+            int n = 1000
+            CountDownLatch cdl = [n]
+            for (i in 0..<n) {
+                pool.execute {
+                    transaction {
+                        registry.alter { it.put(i, i) }
+                        counter.commute { it + 1 }
+                    }
+                    cdl.countDown()
+                }
+            }
+            cdl.await()
+
+            assertEquals n, registry.get().size()
+            assertEquals n, counter.get()
+        }
+    }
+
+    void testSetOutsideOfTransaction () {
+        Ref<Integer> ref = [0]
+        shouldFail(IllegalStateException) {
+            ref.set(1)
+        }
+    }
+
+    void testValidation () {
+        Ref<Integer> ref = new Ref<Integer>(0) {
+            protected boolean doValidate(Integer value) { value >= 0 }
+        }
+        transaction { ref.set(5) }
+        shouldFail(IllegalStateException) {
+            transaction { ref.set(-1) }
+        }
+        assertEquals 5, ref.get()
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009-2011 MBTE Sweden AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package groovypp.concurrent
+
+import groovypp.channels.LoopChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+@Typed
+public class VirtualThreadExecutorTest extends GroovyTestCase {
+
+    void testExecute () {
+        if (!VirtualThreadExecutor.supported)
+            return
+
+        VirtualThreadExecutor executor = []
+        def n = 1000
+        def cdl = new CountDownLatch(n)
+        AtomicInteger sameExecutor = []
+        for (i in 0..<n) {
+            executor.execute {
+                if (CallLaterExecutors.currentExecutor === executor)
+                    sameExecutor.incrementAndGet()
+                cdl.countDown()
+            }
+        }
+        assertTrue cdl.await(10, TimeUnit.SECONDS)
+        assertEquals n, sameExecutor.get()
+
+        executor.shutdown()
+        assertTrue executor.awaitTermination(10, TimeUnit.SECONDS)
+        assertTrue executor.terminated
+        shouldFail(RejectedExecutionException) {
+            executor.execute {}
+        }
+        // rejected task is not counted as active one
+        assertTrue executor.terminated
+    }
+
+    void testFallback () {
+        def executor = CallLaterExecutors.newVirtualThreadExecutor()
+        try {
+            if (VirtualThreadExecutor.supported)
+                assertTrue executor instanceof VirtualThreadExecutor
+            else
+                assertTrue executor instanceof CallLaterPool
+
+            AtomicReference<Executor> current = []
+            def cdl = new CountDownLatch(1)
+            executor.execute {
+                current.set(CallLaterExecutors.currentExecutor)
+                cdl.countDown()
+            }
+            assertTrue cdl.await(10, TimeUnit.SECONDS)
+            assertSame executor, current.get()
+        }
+        finally {
+            executor.shutdown()
+        }
+    }
+
+    void testLoopExecutor () {
+        ExecutorService loopExecutor = CallLaterExecutors.newVirtualThreadExecutor()
+        try {
+            testWithFixedPool(2) {
+                AtomicReference<Executor> current = []
+                def cdl = new CountDownLatch(1)
+                LoopChannel loop = [
+                    executor: pool,
+                    loopExecutor: loopExecutor,
+                    doLoopAction: {
+                        current.set(CallLaterExecutors.currentExecutor)
+                        cdl.countDown()
+                        false
+                    }
+                ]
+                loop.startup()
+                assertTrue cdl.await(10, TimeUnit.SECONDS)
+                // loop does not occupy thread of channel executor
+                assertSame loopExecutor, current.get()
+                loop.shutdown()
+            }
+        }
+        finally {
+            loopExecutor.shutdown()
+        }
+    }
+}